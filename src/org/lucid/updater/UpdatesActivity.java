@@ -73,6 +73,7 @@ import org.lucid.updater.model.UpdateInfo;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -188,6 +189,7 @@ public class UpdatesActivity extends UpdatesListActivity {
     public void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
         if (updaterService != null) {
+            updaterService.getUpdaterController().setInteractive(false);
             unbindService(mConnection);
         }
         super.onStop();
@@ -243,6 +245,7 @@ public class UpdatesActivity extends UpdatesListActivity {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             updaterService = binder.getService();
             updatesListAdapter.setUpdaterController(updaterService.getUpdaterController());
+            updaterService.getUpdaterController().setInteractive(true);
             getUpdatesList();
         }
 
@@ -416,9 +419,13 @@ public class UpdatesActivity extends UpdatesListActivity {
         @SuppressLint("InflateParams") View view = LayoutInflater.from(this).inflate(R.layout.preferences_dialog, null);
         Spinner autoCheckInterval =
                 view.findViewById(R.id.preferences_auto_updates_check_interval);
+        Spinner bandwidthLimit = view.findViewById(R.id.preferences_bandwidth_limit);
+        Spinner bandwidthSchedule = view.findViewById(R.id.preferences_bandwidth_schedule);
         Switch autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
         Switch abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
+        Switch abStreaming = view.findViewById(R.id.preferences_ab_streaming);
+        Switch abPayloadOnly = view.findViewById(R.id.preferences_ab_payload_only);
         ImageView colorPreview = view.findViewById(R.id.color_preview);
         ColorPicker colorPicker = view.findViewById(R.id.color_picker);
 
@@ -431,6 +438,12 @@ public class UpdatesActivity extends UpdatesListActivity {
         abPerfMode.setThumbTintList(ColorStateList.valueOf(selectedColor));
         abPerfMode.setTrackTintList(ColorStateList.valueOf(selectedColor));
 
+        abStreaming.setThumbTintList(ColorStateList.valueOf(selectedColor));
+        abStreaming.setTrackTintList(ColorStateList.valueOf(selectedColor));
+
+        abPayloadOnly.setThumbTintList(ColorStateList.valueOf(selectedColor));
+        abPayloadOnly.setTrackTintList(ColorStateList.valueOf(selectedColor));
+
         colorPicker.setColorSelectionListener(new SimpleColorSelectionListener() {
             @Override
             public void onColorSelected(int color) {
@@ -444,6 +457,12 @@ public class UpdatesActivity extends UpdatesListActivity {
 
                 abPerfMode.setThumbTintList(ColorStateList.valueOf(selectedColor));
                 abPerfMode.setTrackTintList(ColorStateList.valueOf(selectedColor));
+
+                abStreaming.setThumbTintList(ColorStateList.valueOf(selectedColor));
+                abStreaming.setTrackTintList(ColorStateList.valueOf(selectedColor));
+
+                abPayloadOnly.setThumbTintList(ColorStateList.valueOf(selectedColor));
+                abPayloadOnly.setTrackTintList(ColorStateList.valueOf(selectedColor));
                 setViewColors(selectedColor);
             }
         });
@@ -451,13 +470,24 @@ public class UpdatesActivity extends UpdatesListActivity {
 
         if (!Utils.isABDevice()) {
             abPerfMode.setVisibility(View.GONE);
+            abStreaming.setVisibility(View.GONE);
+            abPayloadOnly.setVisibility(View.GONE);
         }
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
+        bandwidthLimit.setSelection(prefs.getInt(Constants.PREF_BANDWIDTH_LIMIT,
+                Constants.BANDWIDTH_LIMIT_NONE));
+        String[] scheduleValues = getResources().getStringArray(
+                R.array.menu_bandwidth_schedule_values);
+        int scheduleIndex = Arrays.asList(scheduleValues).indexOf(
+                Utils.getBandwidthSchedule(this));
+        bandwidthSchedule.setSelection(Math.max(scheduleIndex, 0));
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
+        abStreaming.setChecked(prefs.getBoolean(Constants.PREF_AB_STREAMING, false));
+        abPayloadOnly.setChecked(prefs.getBoolean(Constants.PREF_AB_PAYLOAD_ONLY, false));
         colorPicker.setColor(prefs.getInt(Constants.PREF_ACCENT_COLOR, Color.rgb(94, 151, 246)));
         colorPreview.getBackground().setColorFilter(prefs.getInt(Constants.PREF_ACCENT_COLOR,
                 Color.rgb(94, 151, 246)), PorterDuff.Mode.MULTIPLY);
@@ -469,17 +499,34 @@ public class UpdatesActivity extends UpdatesListActivity {
                     prefs.edit()
                             .putInt(Constants.PREF_AUTO_UPDATES_CHECK_INTERVAL,
                                     autoCheckInterval.getSelectedItemPosition())
+                            .putInt(Constants.PREF_BANDWIDTH_LIMIT,
+                                    bandwidthLimit.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_AUTO_DELETE_UPDATES,
                                     autoDelete.isChecked())
                             .putBoolean(Constants.PREF_MOBILE_DATA_WARNING,
                                     dataWarning.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE,
                                     abPerfMode.isChecked())
+                            .putBoolean(Constants.PREF_AB_STREAMING,
+                                    abStreaming.isChecked())
+                            .putBoolean(Constants.PREF_AB_PAYLOAD_ONLY,
+                                    abPayloadOnly.isChecked())
                             .putInt(Constants.PREF_ACCENT_COLOR,
                                     selectedColor)
                             .apply();
                     setViewColors(selectedColor);
 
+                    // Keep the schedules that aren't in the list unless the user
+                    // chose another one
+                    int schedule = bandwidthSchedule.getSelectedItemPosition();
+                    if (scheduleIndex >= 0 || schedule > 0) {
+                        prefs.edit()
+                                .putString(Constants.PREF_BANDWIDTH_SCHEDULE,
+                                        scheduleValues[schedule])
+                                .apply();
+                    }
+                    updaterService.getUpdaterController().updateBandwidthLimit();
+
                     if (Utils.isUpdateCheckEnabled(this)) {
                         UpdatesCheckReceiver.scheduleRepeatingUpdatesCheck(this);
                     } else {
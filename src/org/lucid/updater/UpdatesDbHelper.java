@@ -30,7 +30,7 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 4;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +42,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_SHA256 = "sha256";
+        public static final String COLUMN_NAME_CHUNK_MANIFEST = "chunk_manifest";
+        public static final String COLUMN_NAME_RANGE_OFFSET = "range_offset";
+        public static final String COLUMN_NAME_RANGE_LENGTH = "range_length";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,7 +57,11 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_RANGE_OFFSET + " INTEGER DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_RANGE_LENGTH + " INTEGER DEFAULT -1)";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
@@ -67,8 +75,26 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (newVersion < oldVersion) {
+            db.execSQL(SQL_DELETE_ENTRIES);
+            onCreate(db);
+            return;
+        }
+        // Don't lose track of the existing downloads
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_SHA256 + " TEXT");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST + " TEXT");
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_RANGE_OFFSET + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_RANGE_LENGTH + " INTEGER DEFAULT -1");
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -85,6 +111,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_SHA256, update.getSha256());
+        values.put(UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST, update.getChunkManifestUrl());
+        values.put(UpdateEntry.COLUMN_NAME_RANGE_OFFSET, update.getRangeOffset());
+        values.put(UpdateEntry.COLUMN_NAME_RANGE_LENGTH, update.getRangeLength());
         return db.insert(UpdateEntry.TABLE_NAME, null, values);
     }
 
@@ -98,6 +128,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_SHA256, update.getSha256());
+        values.put(UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST, update.getChunkManifestUrl());
+        values.put(UpdateEntry.COLUMN_NAME_RANGE_OFFSET, update.getRangeOffset());
+        values.put(UpdateEntry.COLUMN_NAME_RANGE_LENGTH, update.getRangeLength());
         return db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
     }
 
@@ -163,6 +197,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_SHA256,
+                UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST,
+                UpdateEntry.COLUMN_NAME_RANGE_OFFSET,
+                UpdateEntry.COLUMN_NAME_RANGE_LENGTH,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -186,6 +224,14 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SHA256);
+                update.setSha256(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_CHUNK_MANIFEST);
+                update.setChunkManifestUrl(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_RANGE_OFFSET);
+                update.setRangeOffset(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_RANGE_LENGTH);
+                update.setRangeLength(cursor.getLong(index));
                 updates.add(update);
             }
             cursor.close();
@@ -141,7 +141,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             canDelete = true;
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
                     update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
+            String total = Formatter.formatShortFileSize(mActivity, Utils.getDownloadSize(update));
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
 
@@ -178,7 +178,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.action, Action.RESUME, downloadId, !isBusy());
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
                     update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
+            String total = Formatter.formatShortFileSize(mActivity, Utils.getDownloadSize(update));
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
 
@@ -207,7 +207,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.action,
                     Utils.canInstall(update) ? Action.INSTALL : Action.DELETE,
                     downloadId, !isBusy());
-        } else if (!Utils.canInstall(update)) {
+        } else if (!Utils.canInstall(update) || update.getInvalidPackage()) {
             viewHolder.itemView.setOnLongClickListener(
                     getLongClickListener(update, false, viewHolder.buildDate));
             setButtonAction(viewHolder.action, Action.INFO, downloadId, !isBusy());
@@ -217,7 +217,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.action, Action.DOWNLOAD, downloadId, !isBusy());
         }
         String fileSize = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-        viewHolder.buildSize.setText(fileSize);
+        if (update.getPayloadSize() > 0) {
+            String payloadSize = Formatter.formatShortFileSize(mActivity,
+                    update.getPayloadSize());
+            viewHolder.buildSize.setText(mActivity.getString(R.string.list_build_size_ab,
+                    fileSize, payloadSize));
+        } else {
+            viewHolder.buildSize.setText(fileSize);
+        }
 
         viewHolder.progressBar.setVisibility(View.GONE);
         viewHolder.progressText.setVisibility(View.GONE);
@@ -245,7 +252,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.UNKNOWN:
-                activeLayout = update.getStatus() == UpdateStatus.STARTING;
+                // Streamed updates are installed without being downloaded
+                activeLayout = update.getStatus() == UpdateStatus.STARTING ||
+                        update.getStatus() == UpdateStatus.INSTALLING;
                 break;
             case UpdateStatus.Persistent.VERIFIED:
                 activeLayout = update.getStatus() == UpdateStatus.INSTALLING;
@@ -300,9 +309,16 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
 
     private void startDownloadWithWarning(final String downloadId) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        // Streamed updates are written directly to the partitions
+        boolean streaming = Utils.isABDevice() &&
+                preferences.getBoolean(Constants.PREF_AB_STREAMING, false);
+        if (!streaming && !isSpaceAvailable(mUpdaterController.getDownloadSize(downloadId))) {
+            return;
+        }
+
         boolean warn = preferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
         if (Utils.isOnWifiOrEthernet(mActivity) || !warn) {
-            mUpdaterController.startDownload(downloadId);
+            startDownload(downloadId, streaming);
             return;
         }
 
@@ -322,12 +338,21 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                                         .apply();
                                 mActivity.supportInvalidateOptionsMenu();
                             }
-                            mUpdaterController.startDownload(downloadId);
+                            startDownload(downloadId, streaming);
                         })
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
     }
 
+    private void startDownload(String downloadId, boolean streaming) {
+        if (streaming) {
+            // This starts the installation, confirm it like one
+            getInstallDialog(downloadId, true).show();
+        } else {
+            mUpdaterController.startDownload(downloadId);
+        }
+    }
+
     private void setButtonAction(Button button, Action action, final String downloadId,
             boolean enabled) {
         final View.OnClickListener clickListener;
@@ -348,13 +373,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setEnabled(enabled);
                 UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                 final boolean canInstall = Utils.canInstall(update) ||
-                        update.getFile().length() == update.getFileSize();
+                        update.getFile().length() == Utils.getDownloadSize(update);
                 clickListener = enabled ? view -> {
-                    if (canInstall) {
-                        mUpdaterController.resumeDownload(downloadId);
-                    } else {
+                    if (!canInstall) {
                         mActivity.showSnackbar(R.string.snack_update_not_installable,
                                 Snackbar.LENGTH_LONG);
+                    } else if (isSpaceAvailable(Utils.getRequiredSpace(update))) {
+                        mUpdaterController.resumeDownload(downloadId);
                     }
                 } : null;
             }
@@ -441,6 +466,15 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     private AlertDialog.Builder getInstallDialog(final String downloadId) {
+        return getInstallDialog(downloadId, false);
+    }
+
+    /**
+     * @param streaming whether the update is installed while downloading it, in
+     * which case there's no local file yet
+     */
+    private AlertDialog.Builder getInstallDialog(final String downloadId,
+            final boolean streaming) {
         if (!isBatteryLevelOk()) {
             Resources resources = mActivity.getResources();
             String message = resources.getString(R.string.dialog_battery_low_message_pct,
@@ -454,7 +488,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (streaming || Utils.isABUpdate(update.getFile())) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -472,8 +506,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 .setTitle(R.string.apply_update_dialog_title)
                 .setMessage(mActivity.getString(resId, buildInfoText,
                         mActivity.getString(android.R.string.ok)))
-                .setPositiveButton(android.R.string.ok,
-                        (dialog, which) -> Utils.triggerUpdate(mActivity, downloadId))
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    if (streaming) {
+                        Utils.triggerStreamingUpdate(mActivity, downloadId);
+                    } else {
+                        Utils.triggerUpdate(mActivity, downloadId);
+                    }
+                })
                 .setNegativeButton(android.R.string.cancel, null);
     }
 
@@ -559,6 +598,25 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         textView.setMovementMethod(LinkMovementMethod.getInstance());
     }
 
+    /**
+     * Check that the given number of bytes can be downloaded, telling the user
+     * how much space must be freed otherwise.
+     */
+    private boolean isSpaceAvailable(long bytes) {
+        long missingSpace = Utils.getMissingSpace(mActivity, bytes);
+        if (missingSpace <= 0) {
+            return true;
+        }
+        String missing = Formatter.formatShortFileSize(mActivity, missingSpace);
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.dialog_not_enough_space_title)
+                .setMessage(mActivity.getString(R.string.dialog_not_enough_space_message,
+                        missing))
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+        return false;
+    }
+
     private boolean isBatteryLevelOk() {
         Intent intent = mActivity.registerReceiver(null,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
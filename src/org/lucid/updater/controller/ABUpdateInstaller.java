@@ -17,14 +17,19 @@ package org.lucid.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemProperties;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import androidx.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.lucid.updater.download.RemoteZipFile;
+import org.lucid.updater.misc.BuildInfoUtils;
 import org.lucid.updater.misc.Constants;
+import org.lucid.updater.misc.PayloadManifest;
 import org.lucid.updater.misc.Utils;
+import org.lucid.updater.misc.ZipIndex;
 import org.lucid.updater.model.Update;
 import org.lucid.updater.model.UpdateStatus;
 
@@ -36,7 +41,7 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipException;
 
 class ABUpdateInstaller {
 
@@ -54,6 +59,9 @@ class ABUpdateInstaller {
     private UpdateEngine mUpdateEngine;
     private boolean mBound;
 
+    // update_engine isn't running yet while the payload is located
+    private volatile boolean mPreparingStream;
+
     private boolean mFinalizing;
     private int mProgress;
 
@@ -101,7 +109,9 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.IDLE: {
                     // The service was restarted because we thought we were installing an
                     // update, but we aren't, so clear everything.
-                    installationDone(false);
+                    if (!mPreparingStream) {
+                        installationDone(false);
+                    }
                 }
                 break;
             }
@@ -181,21 +191,19 @@ class ABUpdateInstaller {
         long offset;
         String[] headerKeyValuePairs;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+            ZipIndex zipIndex = ZipIndex.get(file);
+            ZipIndex.Entry payloadEntry = zipIndex.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            ZipIndex.Entry payloadPropEntry =
+                    zipIndex.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            if (payloadEntry == null || payloadPropEntry == null) {
+                throw new ZipException("Not an A/B update");
+            }
+            offset = payloadEntry.getDataOffset();
+            checkPayload(PayloadManifest.read(file, offset, payloadEntry.getSize()));
+            try (InputStream is = zipIndex.getInputStream(payloadPropEntry)) {
+                headerKeyValuePairs = readPayloadProperties(is);
             }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -203,32 +211,144 @@ class ABUpdateInstaller {
             return false;
         }
 
+        if (!bind()) {
+            return false;
+        }
+
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, mDownloadId)
+                .apply();
+
+        return true;
+    }
+
+    /**
+     * Install the update without downloading it first. Only the metadata of the
+     * zip are fetched here, update_engine then downloads the payload and writes
+     * it to the partitions at the same time.
+     */
+    public boolean installStreaming(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return false;
+        }
+
+        mDownloadId = downloadId;
+        String url = mUpdaterController.getActualUpdate(downloadId).getDownloadUrl();
+
+        mPreparingStream = true;
+        if (!bind()) {
+            mPreparingStream = false;
+            return false;
+        }
+
+        // Locating the payload requires a few requests, consider the update
+        // as being installed from now on
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, downloadId)
+                .apply();
+        mUpdaterController.getActualUpdate(downloadId).setInstallProgress(0);
+        mUpdaterController.getActualUpdate(downloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(downloadId);
+
+        new Thread(() -> {
+            long offset;
+            long size;
+            String[] headerKeyValuePairs;
+            String payloadUrl;
+            try {
+                RemoteZipFile zipFile = RemoteZipFile.open(url);
+                RemoteZipFile.Entry payloadEntry =
+                        zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                RemoteZipFile.Entry payloadPropEntry =
+                        zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+                if (payloadEntry == null || payloadPropEntry == null) {
+                    throw new IOException("Not an A/B update");
+                }
+                if (payloadEntry.getMethod() != ZipEntry.STORED) {
+                    throw new IOException("The payload is compressed");
+                }
+                offset = zipFile.getDataOffset(payloadEntry);
+                size = payloadEntry.getSize();
+                checkPayload(PayloadManifest.read(zipFile, offset, size));
+                try (InputStream is = zipFile.getInputStream(payloadPropEntry)) {
+                    headerKeyValuePairs = readPayloadProperties(is);
+                }
+                payloadUrl = zipFile.getUrl();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not prepare " + url, e);
+                mPreparingStream = false;
+                installationDone(false);
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(downloadId);
+                return;
+            }
+
+            mPreparingStream = false;
+            if (!isInstallingUpdate(mContext, downloadId)) {
+                Log.d(TAG, "The installation was cancelled");
+                return;
+            }
+            applyPayload(payloadUrl, offset, size, headerKeyValuePairs);
+        }).start();
+
+        return true;
+    }
+
+    /**
+     * Refuse the payloads that update_engine would only reject after having
+     * started the installation.
+     */
+    private static void checkPayload(PayloadManifest manifest) throws IOException {
+        if (manifest.getMaxTimestamp() > 0 &&
+                manifest.getMaxTimestamp() < BuildInfoUtils.getBuildDateTimestamp() &&
+                !SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false)) {
+            throw new IOException("The payload is older than the current build");
+        }
+        Log.d(TAG, "Payload: " + manifest + ", about " +
+                manifest.getInstallTimeEstimateMillis() / 1000 + "s to install");
+    }
+
+    private static String[] readPayloadProperties(InputStream is) throws IOException {
+        try (InputStreamReader isr = new InputStreamReader(is);
+             BufferedReader br = new BufferedReader(isr)) {
+            List<String> lines = new ArrayList<>();
+            for (String line; (line = br.readLine()) != null;) {
+                lines.add(line);
+            }
+            String[] headerKeyValuePairs = new String[lines.size()];
+            return lines.toArray(headerKeyValuePairs);
+        }
+    }
+
+    private boolean bind() {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
+                mUpdaterController.getActualUpdate(mDownloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
                 return false;
             }
         }
+        return true;
+    }
 
+    private void applyPayload(String uri, long offset, long size,
+            String[] headerKeyValuePairs) {
         boolean enableABPerfMode = PreferenceManager.getDefaultSharedPreferences(mContext)
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
 
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
-
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
-                .putString(PREF_INSTALLING_AB_ID, mDownloadId)
-                .apply();
-
-        return true;
     }
 
     public boolean reconnect() {
@@ -274,7 +394,9 @@ class ABUpdateInstaller {
             return false;
         }
 
-        mUpdateEngine.cancel();
+        if (!mPreparingStream) {
+            mUpdateEngine.cancel();
+        }
         installationDone(false);
 
         mUpdaterController.getActualUpdate(mDownloadId)
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.controller;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks the whole-file signature block of an OTA package, which only needs the
+ * end of the file, so that a package that isn't signed by a trusted key can be
+ * rejected without reading all of it.
+ *
+ * This is only a hint: passing the check doesn't mean that the package is valid,
+ * RecoverySystem.verifyPackage() is still the one verifying the signature.
+ */
+class PackageSignatureChecker {
+
+    private static final String TAG = "PackageSignatureChecker";
+
+    private static final String DEFAULT_KEYSTORE = "/system/etc/security/otacerts.zip";
+
+    private static final int FOOTER_SIZE = 6;
+    private static final int EOCD_SIZE = 22;
+    // The whole end of central directory record, including the longest comment
+    private static final int MAX_TAIL_SIZE = EOCD_SIZE + 0xffff;
+
+    private final byte[] mTail;
+    private final int mTailLength;
+
+    private PackageSignatureChecker(byte[] tail) {
+        mTail = tail;
+        mTailLength = tail.length;
+    }
+
+    /**
+     * Check the signature block of the given package. Nothing is reported if the
+     * block can't be checked this way, RecoverySystem.verifyPackage() will tell.
+     *
+     * @throws SignatureException if the package can't be correctly signed
+     */
+    static void check(File packageFile) throws SignatureException {
+        byte[] tail;
+        try (RandomAccessFile file = new RandomAccessFile(packageFile, "r")) {
+            // The archive comment holding the signature is at most 64KB long
+            tail = new byte[(int) Math.min(file.length(), MAX_TAIL_SIZE)];
+            file.seek(file.length() - tail.length);
+            file.readFully(tail);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the end of " + packageFile, e);
+            return;
+        }
+        new PackageSignatureChecker(tail).checkTail();
+    }
+
+    private void checkTail() throws SignatureException {
+        if (mTailLength < EOCD_SIZE) {
+            throw new SignatureException("The file is too short");
+        }
+
+        int footer = mTailLength - FOOTER_SIZE;
+        if (mTail[footer + 2] != (byte) 0xff || mTail[footer + 3] != (byte) 0xff) {
+            throw new SignatureException("no signature in file (no footer)");
+        }
+        int commentSize = (mTail[footer + 4] & 0xff) | ((mTail[footer + 5] & 0xff) << 8);
+        int signatureStart = (mTail[footer] & 0xff) | ((mTail[footer + 1] & 0xff) << 8);
+        int eocd = mTailLength - (commentSize + EOCD_SIZE);
+        if (eocd < 0 || signatureStart > commentSize + EOCD_SIZE) {
+            throw new SignatureException("Invalid footer");
+        }
+        if (!isEocdMarker(eocd)) {
+            throw new SignatureException("no signature in file (bad footer)");
+        }
+        for (int i = eocd + 4; i < mTailLength - 3; i++) {
+            if (isEocdMarker(i)) {
+                throw new SignatureException("EOCD marker found after start of EOCD");
+            }
+        }
+
+        // The X.509 factory reads the certificates of a PKCS#7 SignedData block
+        Collection<? extends Certificate> certificates;
+        Set<Certificate> trusted;
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            certificates = cf.generateCertificates(new ByteArrayInputStream(mTail,
+                    mTailLength - signatureStart, signatureStart));
+            trusted = getTrustedCertificates(cf);
+        } catch (IOException | GeneralSecurityException e) {
+            Log.e(TAG, "Could not read the certificates", e);
+            return;
+        }
+        if (certificates.isEmpty()) {
+            throw new SignatureException("signature contains no certificates");
+        }
+        for (Certificate certificate : certificates) {
+            for (Certificate trustedCertificate : trusted) {
+                if (trustedCertificate.getPublicKey().equals(certificate.getPublicKey())) {
+                    return;
+                }
+            }
+        }
+        throw new SignatureException("signature doesn't match any trusted key");
+    }
+
+    private boolean isEocdMarker(int offset) {
+        return mTail[offset] == 0x50 && mTail[offset + 1] == 0x4b &&
+                mTail[offset + 2] == 0x05 && mTail[offset + 3] == 0x06;
+    }
+
+    private static Set<Certificate> getTrustedCertificates(CertificateFactory cf)
+            throws IOException, GeneralSecurityException {
+        Set<Certificate> trusted = new HashSet<>();
+        try (ZipFile zip = new ZipFile(DEFAULT_KEYSTORE)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                try (InputStream is = zip.getInputStream(entries.nextElement())) {
+                    trusted.add(cf.generateCertificate(is));
+                }
+            }
+        }
+        return trusted;
+    }
+}
@@ -17,6 +17,7 @@ package org.lucid.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.RecoverySystem;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import androidx.preference.PreferenceManager;
@@ -25,6 +26,7 @@ import android.util.Log;
 import org.lucid.updater.misc.Constants;
 import org.lucid.updater.misc.FileUtils;
 import org.lucid.updater.misc.Utils;
+import org.lucid.updater.model.Update;
 import org.lucid.updater.model.UpdateInfo;
 import org.lucid.updater.model.UpdateStatus;
 
@@ -38,7 +40,10 @@ class UpdateInstaller {
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
+    private static String sProcessedPackage = null;
+
     private Thread mPrepareUpdateThread;
+    private Thread mProcessThread;
     private volatile boolean mCanCancel;
 
     private final Context mContext;
@@ -87,29 +92,123 @@ class UpdateInstaller {
 
         if (Utils.isEncrypted(mContext, update.getFile())) {
             // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
-            prepareForUncryptAndInstall(update);
+            // the filesystem. Hand over the file itself if it's going to be deleted
+            // anyway, create a copy of it otherwise.
+            boolean deleteUpdate = preferences.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES,
+                    false);
+            prepareAndInstall(update, true, deleteUpdate);
+        } else if (isProcessed(update.getFile())) {
+            installPackage(update.getFile(), downloadId, true);
         } else {
-            installPackage(update.getFile(), downloadId);
+            prepareAndInstall(update, false, false);
+        }
+    }
+
+    /**
+     * Run uncrypt on a verified package in the background, so that installing
+     * it only needs to write the recovery command and reboot. Encrypted packages
+     * are skipped since uncrypt would rewrite them, they are processed once the
+     * installation is requested.
+     */
+    synchronized void prepare(String downloadId) {
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        File file = update.getFile();
+        if (isInstalling() || mProcessThread != null || isProcessed(file) ||
+                Utils.isEncrypted(mContext, file)) {
+            return;
         }
+        synchronized (UpdateInstaller.class) {
+            sProcessedPackage = null;
+        }
+        mProcessThread = new Thread(() -> {
+            boolean processed = processPackage(file, downloadId);
+            synchronized (UpdateInstaller.this) {
+                if (processed) {
+                    synchronized (UpdateInstaller.class) {
+                        sProcessedPackage = file.getAbsolutePath();
+                    }
+                }
+                mProcessThread = null;
+            }
+            Log.d(TAG, "Processed " + file + " ahead of the installation: " + processed);
+        });
+        mProcessThread.start();
+    }
+
+    private static synchronized boolean isProcessed(File file) {
+        return file.getAbsolutePath().equals(sProcessedPackage);
     }
 
-    private void installPackage(File update, String downloadId) {
+    /**
+     * Create the block map of the package and, on encrypted devices, rewrite
+     * it so that recovery can read it.
+     *
+     * @return false if the package couldn't be processed
+     */
+    private boolean processPackage(File file, String downloadId) {
+        RecoverySystem.ProgressListener listener = new RecoverySystem.ProgressListener() {
+            private long mLastUpdate = -1;
+
+            @Override
+            public void onProgress(int progress) {
+                long now = SystemClock.elapsedRealtime();
+                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
+                    Update update = mUpdaterController.getActualUpdate(downloadId);
+                    if (update != null) {
+                        update.setInstallProgress(progress);
+                    }
+                    // Only show the progress if the user is waiting for it
+                    if (isInstalling(downloadId)) {
+                        mUpdaterController.notifyInstallProgress(downloadId);
+                    }
+                    mLastUpdate = now;
+                }
+            }
+        };
         try {
-            android.os.RecoverySystem.installPackage(mContext, update);
+            RecoverySystem.processPackage(mContext, file, listener);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not process " + file, e);
+            return false;
+        }
+    }
+
+    private boolean installPackage(File update, String downloadId, boolean processed) {
+        if (processed) {
+            try {
+                RecoverySystem.installPackage(mContext, update, true);
+                return true;
+            } catch (IOException e) {
+                // The block map might have been removed in the meantime
+                Log.e(TAG, "Could not install processed update, retrying", e);
+            }
+        }
+        try {
+            RecoverySystem.installPackage(mContext, update);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
+            return false;
         }
     }
 
-    private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
-        String uncryptFilePath = update.getFile().getAbsolutePath() + Constants.UNCRYPT_FILE_EXT;
-        File uncryptFile = new File(uncryptFilePath);
+    /**
+     * Process the package, if it wasn't done already, and install it. Encrypted
+     * packages are first copied or, if move is true, renamed to the name uncrypt
+     * expects, since they are rewritten and can't be used again.
+     */
+    private synchronized void prepareAndInstall(UpdateInfo update, boolean encrypted,
+            boolean move) {
+        String downloadId = update.getDownloadId();
+        File file = update.getFile();
+        File uncryptFile = new File(file.getAbsolutePath() + Constants.UNCRYPT_FILE_EXT);
+        Thread processThread = mProcessThread;
 
-        Runnable copyUpdateRunnable = new Runnable() {
+        Runnable prepareUpdateRunnable = new Runnable() {
             private long mLastUpdate = -1;
 
             FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
@@ -117,9 +216,9 @@ class UpdateInstaller {
                 public void update(int progress) {
                     long now = SystemClock.elapsedRealtime();
                     if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
+                        mUpdaterController.getActualUpdate(downloadId)
                                 .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
+                        mUpdaterController.notifyInstallProgress(downloadId);
                         mLastUpdate = now;
                     }
                 }
@@ -127,43 +226,78 @@ class UpdateInstaller {
 
             @Override
             public void run() {
+                File packageFile = file;
+                boolean moved = false;
                 try {
-                    mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
-                    mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(0);
-                        uncryptFile.delete();
-                    } else {
-                        installPackage(uncryptFile, update.getDownloadId());
+                    if (encrypted) {
+                        packageFile = uncryptFile;
+                        moved = move && file.renameTo(uncryptFile);
+                        if (!moved) {
+                            if (move) {
+                                Log.e(TAG, "Could not move " + file + ", copying it");
+                            }
+                            mCanCancel = true;
+                            FileUtils.copyFile(file, uncryptFile, mProgressCallBack);
+                            mCanCancel = false;
+                            if (mPrepareUpdateThread.isInterrupted()) {
+                                setCancelled();
+                                uncryptFile.delete();
+                                return;
+                            }
+                        }
+                    } else if (processThread != null) {
+                        // Wait for the processing started after the verification
+                        processThread.join();
+                    }
+
+                    boolean processed = isProcessed(packageFile) ||
+                            processPackage(packageFile, downloadId);
+                    if (!installPackage(packageFile, downloadId, processed) && moved) {
+                        if (!processed) {
+                            // Not rewritten by uncrypt, the package is still intact
+                            if (!uncryptFile.renameTo(file)) {
+                                Log.e(TAG, "Could not move back " + uncryptFile);
+                            }
+                        } else {
+                            // uncrypt rewrote the blocks, the package must be
+                            // downloaded again
+                            uncryptFile.delete();
+                            mUpdaterController.deleteUpdate(downloadId);
+                        }
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
                     uncryptFile.delete();
-                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                    mUpdaterController.getActualUpdate(downloadId)
                             .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                } catch (InterruptedException e) {
+                    setCancelled();
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
                         mPrepareUpdateThread = null;
                         sInstallingUpdate = null;
                     }
-                    mUpdaterController.notifyUpdateChange(update.getDownloadId());
+                    mUpdaterController.notifyUpdateChange(downloadId);
                 }
             }
+
+            private void setCancelled() {
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setInstallProgress(0);
+            }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
+        mPrepareUpdateThread = new Thread(prepareUpdateRunnable);
         mPrepareUpdateThread.start();
-        sInstallingUpdate = update.getDownloadId();
+        sInstallingUpdate = downloadId;
         mCanCancel = false;
 
-        mUpdaterController.getActualUpdate(update.getDownloadId())
+        mUpdaterController.getActualUpdate(downloadId)
                 .setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(update.getDownloadId());
+        mUpdaterController.notifyUpdateChange(downloadId);
     }
 
     public synchronized void cancel() {
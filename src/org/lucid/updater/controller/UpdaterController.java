@@ -21,10 +21,19 @@ import android.database.sqlite.SQLiteDatabase;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 import android.util.Log;
 
+import org.json.JSONException;
 import org.lucid.updater.UpdatesDbHelper;
+import org.lucid.updater.download.ChunkManifest;
+import org.lucid.updater.download.BandwidthLimiter;
 import org.lucid.updater.download.DownloadClient;
+import org.lucid.updater.download.DownloadJournal;
+import org.lucid.updater.download.MirrorScoreboard;
+import org.lucid.updater.download.PayloadPackage;
+import org.lucid.updater.download.RemoteZipFile;
+import org.lucid.updater.misc.Constants;
 import org.lucid.updater.misc.Utils;
 import org.lucid.updater.model.Update;
 import org.lucid.updater.model.UpdateInfo;
@@ -32,12 +41,16 @@ import org.lucid.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
 
 public class UpdaterController {
 
@@ -52,6 +65,7 @@ public class UpdaterController {
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int MAX_REPAIR_ATTEMPTS = 2;
 
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
@@ -60,8 +74,12 @@ public class UpdaterController {
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
+    private final MirrorScoreboard mMirrorScoreboard;
+    private final BandwidthLimiter mBandwidthLimiter = new BandwidthLimiter();
+    private final ExecutorService mPackageCheckExecutor = Executors.newSingleThreadExecutor();
 
     private int mActiveDownloads = 0;
+    private boolean mInteractive;
     private Set<String> mVerifyingUpdates = new HashSet<>();
 
     public static synchronized UpdaterController getInstance() {
@@ -79,10 +97,12 @@ public class UpdaterController {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
         mDownloadRoot = Utils.getDownloadPath(context);
+        mMirrorScoreboard = new MirrorScoreboard(Utils.getMirrorScoreboardFile(context));
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        updateBandwidthLimit();
 
         Utils.cleanupDownloadsDir(context);
 
@@ -94,6 +114,16 @@ public class UpdaterController {
     private class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        // Whether the user didn't ask for the download, see startDownload()
+        boolean mBackground;
+        int mRepairAttempts;
+        // What to download to get only the payload of A/B updates, if possible
+        PayloadPackage mPayloadPackage;
+        // Set from the pause until the client confirms it stopped writing the file.
+        // Resuming in the meantime is deferred to mOnStopped.
+        boolean mStopping;
+        long mPauseMillis;
+        Runnable mOnStopped;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
@@ -156,6 +186,10 @@ public class UpdaterController {
 
             @Override
             public void onResponse(int statusCode, String url, DownloadClient.Headers headers) {
+                if (!isDownloading(downloadId)) {
+                    // Paused meanwhile
+                    return;
+                }
                 final Update update = mDownloads.get(downloadId).mUpdate;
                 String contentLength = headers.get("Content-Length");
                 if (contentLength != null) {
@@ -178,10 +212,34 @@ public class UpdaterController {
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
-                update.setStatus(UpdateStatus.VERIFYING);
+                DownloadEntry entry = mDownloads.get(downloadId);
+                Update update = entry.mUpdate;
+                removeDownloadClient(entry);
+                try {
+                    if (update.getRangeLength() < 0) {
+                        // Reject packages that can't be correctly signed right away,
+                        // the payload alone has no signature block
+                        PackageSignatureChecker.check(destination);
+                    }
+                    // The digest only tells that the file is what the server meant to
+                    // send, it comes from the same server. It can reject a corrupted
+                    // download early, but not replace verifyPackage(), which still
+                    // reads the whole file again.
+                    update.setStatus(UpdateStatus.VERIFYING);
+                    verifyUpdateAsync(downloadId);
+                } catch (SignatureException e) {
+                    Log.e(TAG, "Verification failed", e);
+                    handleVerificationFailure(downloadId);
+                }
+                notifyUpdateChange(downloadId);
+                tryReleaseWakelock();
+            }
+
+            @Override
+            public void onVerificationFailure(File destination) {
+                Log.e(TAG, "Download corrupted");
                 removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
+                handleVerificationFailure(downloadId);
                 notifyUpdateChange(downloadId);
                 tryReleaseWakelock();
             }
@@ -190,8 +248,20 @@ public class UpdaterController {
             public void onFailure(boolean cancelled) {
                 Update update = mDownloads.get(downloadId).mUpdate;
                 if (cancelled) {
-                    Log.d(TAG, "Download cancelled");
                     // Already notified
+                    DownloadEntry entry = mDownloads.get(downloadId);
+                    Runnable onStopped;
+                    synchronized (entry) {
+                        Log.d(TAG, "Download stopped " +
+                                (SystemClock.elapsedRealtime() - entry.mPauseMillis) +
+                                " ms after pausing");
+                        entry.mStopping = false;
+                        onStopped = entry.mOnStopped;
+                        entry.mOnStopped = null;
+                    }
+                    if (onStopped != null) {
+                        onStopped.run();
+                    }
                 } else {
                     Log.e(TAG, "Download failed");
                     removeDownloadClient(mDownloads.get(downloadId));
@@ -211,12 +281,15 @@ public class UpdaterController {
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta,
                     boolean done) {
+                if (!isDownloading(downloadId)) {
+                    return;
+                }
                 Update update = mDownloads.get(downloadId).mUpdate;
                 if (contentLength <= 0) {
-                    if (update.getFileSize() <= 0) {
+                    if (Utils.getDownloadSize(update) <= 0) {
                         return;
                     } else {
-                        contentLength = update.getFileSize();
+                        contentLength = Utils.getDownloadSize(update);
                     }
                 }
                 if (contentLength <= 0) {
@@ -236,27 +309,169 @@ public class UpdaterController {
         };
     }
 
+    private DownloadClient.SpaceAllocator getSpaceAllocator(final String downloadId) {
+        // Deleting the cached files of the apps can take a while, this runs on the
+        // download thread and a failure is reported through onFailure()
+        return bytes -> {
+            if (!Utils.allocateSpace(mContext, bytes)) {
+                throw new IOException("Not enough space to download " + downloadId + ", " +
+                        Utils.getMissingSpace(mContext, bytes) + " bytes missing");
+            }
+        };
+    }
+
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
         new Thread(() -> {
             Update update = mDownloads.get(downloadId).mUpdate;
             File file = update.getFile();
-            if (file.exists() && verifyPackage(file)) {
-                file.setReadable(true, false);
-                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
+            boolean verified;
+            if (update.getRangeLength() >= 0) {
+                verified = file.exists() && completePayloadPackage(downloadId) &&
+                        PayloadPackage.verify(file);
             } else {
-                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                mUpdatesDbHelper.removeUpdate(downloadId);
-                update.setProgress(0);
-                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                verified = file.exists() && verifyPackage(file);
             }
             mVerifyingUpdates.remove(downloadId);
+            if (verified) {
+                setUpdateVerified(update);
+            } else {
+                handleVerificationFailure(downloadId);
+            }
             notifyUpdateChange(downloadId);
         }).start();
     }
 
+    /**
+     * Add what's missing after the downloaded payload to make it a valid package.
+     */
+    private boolean completePayloadPackage(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        File file = entry.mUpdate.getFile();
+        try {
+            PayloadPackage payloadPackage = entry.mPayloadPackage;
+            if (payloadPackage == null) {
+                // The updater was restarted since the download started
+                payloadPackage = PayloadPackage.read(
+                        RemoteZipFile.open(entry.mUpdate.getDownloadUrl()));
+            }
+            if (payloadPackage.getOffset() != entry.mUpdate.getRangeOffset() ||
+                    payloadPackage.getLength() != entry.mUpdate.getRangeLength()) {
+                Log.e(TAG, "The package of " + downloadId + " changed on the server");
+                return false;
+            }
+            if (!payloadPackage.isTrailerWritten(file)) {
+                payloadPackage.writeTrailer(file);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not complete " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Try to re-download only the corrupted chunks of a package that failed the
+     * verification, deleting it if that's not possible.
+     */
+    private void handleVerificationFailure(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        Update update = entry.mUpdate;
+        File file = update.getFile();
+        // The manifest describes the whole package, not only the payload
+        if (file != null && file.exists() && update.getChunkManifestUrl() != null &&
+                update.getRangeLength() < 0 && entry.mRepairAttempts < MAX_REPAIR_ATTEMPTS) {
+            entry.mRepairAttempts++;
+            if (startRepair(downloadId)) {
+                return;
+            }
+        }
+        if (file != null && file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+        }
+        setUpdateVerificationFailed(update);
+    }
+
+    private boolean startRepair(final String downloadId) {
+        final Update update = mDownloads.get(downloadId).mUpdate;
+        final File file = update.getFile();
+        final File manifest = new File(mContext.getCacheDir(), downloadId + ".chunks");
+        DownloadClient downloadClient;
+        try {
+            downloadClient = new DownloadClient.Builder()
+                    .setUrl(update.getChunkManifestUrl())
+                    .setDestination(manifest)
+                    .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                        @Override
+                        public void onResponse(int statusCode, String url,
+                                DownloadClient.Headers headers) {
+                        }
+
+                        @Override
+                        public void onSuccess(File destination) {
+                            int corrupted = 0;
+                            try {
+                                corrupted = ChunkManifest.read(destination).markCorruptedChunks(
+                                        file, Utils.getDownloadJournalFile(file));
+                            } catch (IOException | JSONException e) {
+                                Log.e(TAG, "Could not check the chunks of " + downloadId, e);
+                            }
+                            manifest.delete();
+                            mVerifyingUpdates.remove(downloadId);
+                            if (corrupted > 0) {
+                                Log.d(TAG, "Downloading again " + corrupted + " chunks");
+                                resumeDownload(downloadId,
+                                        mDownloads.get(downloadId).mBackground);
+                            } else {
+                                onRepairFailure();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(boolean cancelled) {
+                            Log.e(TAG, "Could not download the chunk manifest");
+                            manifest.delete();
+                            mVerifyingUpdates.remove(downloadId);
+                            onRepairFailure();
+                        }
+
+                        private void onRepairFailure() {
+                            if (file.exists() && !file.delete()) {
+                                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                            }
+                            setUpdateVerificationFailed(update);
+                            notifyUpdateChange(downloadId);
+                        }
+                    })
+                    .build();
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not build download client");
+            return false;
+        }
+        Log.d(TAG, "Checking the chunks of " + downloadId);
+        mVerifyingUpdates.add(downloadId);
+        update.setStatus(UpdateStatus.VERIFYING);
+        downloadClient.start();
+        return true;
+    }
+
+    private void setUpdateVerified(Update update) {
+        update.getFile().setReadable(true, false);
+        update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+        mUpdatesDbHelper.changeUpdateStatus(update);
+        update.setStatus(UpdateStatus.VERIFIED);
+        if (!Utils.isABDevice()) {
+            UpdateInstaller.getInstance(mContext, this).prepare(update.getDownloadId());
+        }
+    }
+
+    private void setUpdateVerificationFailed(Update update) {
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        mUpdatesDbHelper.removeUpdate(update.getDownloadId());
+        update.setProgress(0);
+        update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+    }
+
     private boolean verifyPackage(File file) {
         try {
             android.os.RecoverySystem.verifyPackage(file, null, null);
@@ -264,9 +479,7 @@ public class UpdaterController {
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                file.delete();
-            } else {
+            if (!file.exists()) {
                 // The download was probably stopped. Exit silently
                 Log.e(TAG, "Error while verifying the file", e);
             }
@@ -283,8 +496,14 @@ public class UpdaterController {
                     return false;
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
-                    int progress = Math.round(
-                            update.getFile().length() * 100 / update.getFileSize());
+                    // The file might have holes if it wasn't downloaded sequentially
+                    long downloaded = DownloadJournal.getCompletedBytes(
+                            Utils.getDownloadJournalFile(update.getFile()));
+                    if (downloaded < 0) {
+                        downloaded = update.getFile().length();
+                    }
+                    int progress = Math.round(downloaded * 100 /
+                            Utils.getDownloadSize(update));
                     update.setProgress(progress);
                 }
                 break;
@@ -329,6 +548,12 @@ public class UpdaterController {
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
             updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+            if (updateInfo.getSha256() != null) {
+                updateAdded.setSha256(updateInfo.getSha256());
+            }
+            if (updateInfo.getChunkManifestUrl() != null) {
+                updateAdded.setChunkManifestUrl(updateInfo.getChunkManifestUrl());
+            }
             return false;
         }
         Update update = new Update(updateInfo);
@@ -340,15 +565,139 @@ public class UpdaterController {
         }
         update.setAvailableOnline(availableOnline);
         mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+        if (availableOnline && update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                Utils.canInstall(update)) {
+            checkPackageAsync(update);
+        }
         return true;
     }
 
+    /**
+     * Read the central directory of the package from the server to know its
+     * type and the size of the payload before downloading it, and to reject
+     * packages that are corrupted or can't be installed on this device.
+     */
+    private void checkPackageAsync(final Update update) {
+        mPackageCheckExecutor.execute(() -> {
+            String downloadId = update.getDownloadId();
+            try {
+                RemoteZipFile zipFile = RemoteZipFile.open(update.getDownloadUrl());
+                boolean isAB = Utils.isABUpdate(zipFile);
+                if (update.getFileSize() > 0 && zipFile.getLength() != update.getFileSize()) {
+                    Log.e(TAG, downloadId + " doesn't have the expected size");
+                    update.setInvalidPackage(true);
+                } else if (isAB != Utils.isABDevice()) {
+                    Log.e(TAG, downloadId + " is not compatible with this device");
+                    update.setInvalidPackage(true);
+                } else if (isAB) {
+                    update.setPayloadSize(
+                            zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH).getSize());
+                    try {
+                        mDownloads.get(downloadId).mPayloadPackage =
+                                PayloadPackage.read(zipFile);
+                    } catch (IOException e) {
+                        Log.e(TAG, "The payload of " + downloadId +
+                                " can't be downloaded on its own", e);
+                    }
+                } else {
+                    update.setPayloadSize(0);
+                }
+            } catch (ZipException e) {
+                Log.e(TAG, downloadId + " is not a valid package", e);
+                update.setInvalidPackage(true);
+            } catch (IOException e) {
+                // The server might not support range requests, the package
+                // is checked once downloaded
+                Log.e(TAG, "Could not check " + downloadId, e);
+                return;
+            }
+            notifyUpdateChange(downloadId);
+        });
+    }
+
+    /**
+     * @return the payload to download instead of the whole package, or null
+     */
+    private PayloadPackage getPayloadToDownload(String downloadId) {
+        PayloadPackage payloadPackage = mDownloads.get(downloadId).mPayloadPackage;
+        if (payloadPackage != null && Utils.isABDevice() &&
+                PreferenceManager.getDefaultSharedPreferences(mContext)
+                        .getBoolean(Constants.PREF_AB_PAYLOAD_ONLY, false)) {
+            return payloadPackage;
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes a new download of the given update writes,
+     * only the payload when that's all that will be downloaded
+     */
+    public long getDownloadSize(String downloadId) {
+        if (!mDownloads.containsKey(downloadId)) {
+            return 0;
+        }
+        PayloadPackage payloadPackage = getPayloadToDownload(downloadId);
+        return payloadPackage != null ? payloadPackage.getLength() :
+                mDownloads.get(downloadId).mUpdate.getFileSize();
+    }
+
+    /**
+     * Build the client that downloads the given update, or the range of it that
+     * was chosen, to its file.
+     */
+    private DownloadClient buildDownloadClient(String downloadId, boolean background)
+            throws IOException {
+        Update update = mDownloads.get(downloadId).mUpdate;
+        // The digest is only known for the whole package
+        boolean payloadOnly = update.getRangeLength() >= 0;
+        return new DownloadClient.Builder()
+                .setUrl(update.getDownloadUrl())
+                .setDestination(update.getFile())
+                .setDownloadCallback(getDownloadCallback(downloadId))
+                .setProgressListener(getProgressListener(downloadId))
+                .setUseDuplicateLinks(true)
+                .setSegments(Utils.getDownloadSegments(mContext))
+                .setUseMultipleSources(true)
+                .setMirrorScoreboard(mMirrorScoreboard)
+                .setBandwidthLimiter(mBandwidthLimiter)
+                .setScavenger(background)
+                .setSpaceAllocator(getSpaceAllocator(downloadId))
+                .setProbeMirrors(true)
+                .setSha256(payloadOnly ? null : update.getSha256())
+                .setJournal(Utils.getDownloadJournalFile(update.getFile()))
+                .setRange(update.getRangeOffset(), update.getRangeLength())
+                .build();
+    }
+
     public boolean startDownload(String downloadId) {
-        Log.d(TAG, "Starting " + downloadId);
+        return startDownload(downloadId, false);
+    }
+
+    /**
+     * @param background true if the user didn't ask for the download, which
+     * then only uses the bandwidth left unused by the other apps
+     */
+    public boolean startDownload(String downloadId, boolean background) {
+        Log.d(TAG, "Starting " + downloadId + (background ? " in the background" : ""));
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
+        if (update.getInvalidPackage()) {
+            Log.e(TAG, downloadId + " can't be installed, not downloading it");
+            update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+            notifyUpdateChange(downloadId);
+            return false;
+        }
+        PayloadPackage payloadPackage = getPayloadToDownload(downloadId);
+        if (payloadPackage != null) {
+            Log.d(TAG, "Downloading only the payload of " + downloadId);
+            update.setRangeOffset(payloadPackage.getOffset());
+            update.setRangeLength(payloadPackage.getLength());
+        } else {
+            update.setRangeOffset(0);
+            update.setRangeLength(-1);
+        }
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
@@ -357,13 +706,7 @@ public class UpdaterController {
         update.setFile(destination);
         DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(update.getDownloadUrl())
-                    .setDestination(update.getFile())
-                    .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
-                    .setUseDuplicateLinks(true)
-                    .build();
+            downloadClient = buildDownloadClient(downloadId, background);
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
             update.setStatus(UpdateStatus.PAUSED_ERROR);
@@ -371,6 +714,9 @@ public class UpdaterController {
             return false;
         }
         addDownloadClient(mDownloads.get(downloadId), downloadClient);
+        mDownloads.get(downloadId).mBackground = background;
+        mDownloads.get(downloadId).mRepairAttempts = 0;
+        downloadClient.setScavengerSuspended(mInteractive);
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -379,11 +725,30 @@ public class UpdaterController {
     }
 
     public boolean resumeDownload(String downloadId) {
-        Log.d(TAG, "Resuming " + downloadId);
+        return resumeDownload(downloadId, false);
+    }
+
+    /**
+     * @param background true if the user didn't ask for the download, which
+     * then only uses the bandwidth left unused by the other apps
+     */
+    public boolean resumeDownload(String downloadId, boolean background) {
+        Log.d(TAG, "Resuming " + downloadId + (background ? " in the background" : ""));
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        synchronized (entry) {
+            if (entry.mStopping) {
+                // Two transfers can't write the same file
+                Log.d(TAG, "Resuming once the previous transfer stopped");
+                entry.mOnStopped = () -> resumeDownload(downloadId, background);
+                entry.mUpdate.setStatus(UpdateStatus.STARTING);
+                notifyUpdateChange(downloadId);
+                return true;
+            }
+        }
+        Update update = entry.mUpdate;
         File file = update.getFile();
         if (file == null || !file.exists()) {
             Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
@@ -391,7 +756,9 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return false;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        long downloadSize = Utils.getDownloadSize(update);
+        if (file.exists() && downloadSize > 0 && file.length() >= downloadSize &&
+                !Utils.getDownloadJournalFile(file).exists()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
             verifyUpdateAsync(downloadId);
@@ -399,13 +766,7 @@ public class UpdaterController {
         } else {
             DownloadClient downloadClient;
             try {
-                downloadClient = new DownloadClient.Builder()
-                        .setUrl(update.getDownloadUrl())
-                        .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
-                        .setUseDuplicateLinks(true)
-                        .build();
+                downloadClient = buildDownloadClient(downloadId, background);
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
                 update.setStatus(UpdateStatus.PAUSED_ERROR);
@@ -413,6 +774,8 @@ public class UpdaterController {
                 return false;
             }
             addDownloadClient(mDownloads.get(downloadId), downloadClient);
+            mDownloads.get(downloadId).mBackground = background;
+            downloadClient.setScavengerSuspended(mInteractive);
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -423,13 +786,23 @@ public class UpdaterController {
 
     public boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
             return false;
         }
-
-        DownloadEntry entry = mDownloads.get(downloadId);
-        entry.mDownloadClient.cancel();
-        removeDownloadClient(entry);
+        synchronized (entry) {
+            if (isDownloading(downloadId)) {
+                entry.mPauseMillis = SystemClock.elapsedRealtime();
+                // The client confirms when it stopped, see onFailure()
+                entry.mStopping = entry.mDownloadClient.cancel();
+                removeDownloadClient(entry);
+            } else if (entry.mOnStopped != null) {
+                // Resumed while still stopping, don't resume after all
+                entry.mOnStopped = null;
+            } else {
+                return false;
+            }
+        }
         entry.mUpdate.setStatus(UpdateStatus.PAUSED);
         entry.mUpdate.setEta(0);
         entry.mUpdate.setSpeed(0);
@@ -443,6 +816,10 @@ public class UpdaterController {
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
+            File journal = Utils.getDownloadJournalFile(file);
+            if (journal.exists() && !journal.delete()) {
+                Log.e(TAG, "Could not delete " + journal.getAbsolutePath());
+            }
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
         }).start();
     }
@@ -526,6 +903,29 @@ public class UpdaterController {
         return ABUpdateInstaller.isWaitingForReboot(mContext, downloadId);
     }
 
+    /**
+     * Apply the speed limit from the preferences to the running downloads too.
+     */
+    public void updateBandwidthLimit() {
+        mBandwidthLimiter.setLimit(Utils.getBandwidthLimit(mContext),
+                Utils.getBandwidthSchedule(mContext));
+    }
+
+    /**
+     * Download at full speed while the user is looking at the updates, the
+     * speed limit and the scavenger mode are meant for the downloads in the
+     * background.
+     */
+    public void setInteractive(boolean interactive) {
+        mInteractive = interactive;
+        mBandwidthLimiter.setSuspended(interactive);
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mDownloadClient != null) {
+                entry.mDownloadClient.setScavengerSuspended(interactive);
+            }
+        }
+    }
+
     public void setPerformanceMode(boolean enable) {
         if (!Utils.isABDevice()) {
             return;
@@ -52,6 +52,7 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_INSTALL_STREAMING = "action_install_streaming";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
 
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
@@ -176,7 +177,8 @@ public class UpdaterService extends Service {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             int action = intent.getIntExtra(EXTRA_DOWNLOAD_CONTROL, -1);
             if (action == DOWNLOAD_RESUME) {
-                mUpdaterController.resumeDownload(downloadId);
+                // Tapped by the user, so not a background download
+                mUpdaterController.resumeDownload(downloadId, false);
             } else if (action == DOWNLOAD_PAUSE) {
                 mUpdaterController.pauseDownload(downloadId);
             } else {
@@ -204,6 +206,11 @@ public class UpdaterService extends Service {
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
             }
+        } else if (ACTION_INSTALL_STREAMING.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                    mUpdaterController);
+            installer.installStreaming(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
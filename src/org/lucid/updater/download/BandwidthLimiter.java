@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A token bucket shared by the downloads to limit their overall speed. The
+ * received data is paid for after being read, so reads keep their usual size:
+ * the bucket goes into debt and the next reads wait until it's paid back. The
+ * waiting connections stop reading, which makes the server slow down.
+ *
+ * The limit can apply only during some hours of the day, and can be lifted
+ * temporarily, for instance while the user is waiting for the download.
+ */
+public class BandwidthLimiter {
+
+    private static final String TAG = "BandwidthLimiter";
+
+    // Data that can be received at full speed after being idle
+    private static final long BURST_MILLIS = 500;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    // How often the schedule is checked
+    private static final long SCHEDULE_CHECK_INTERVAL_MS = 30000;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private long mLimit;
+    // Pairs of minutes of the day delimiting when the limit applies, the limit
+    // always applies if there's none
+    private int[] mSchedule = new int[0];
+    private boolean mSuspended;
+
+    private long mRate;
+    private double mTokens;
+    private long mConsumedBytes;
+    private long mLastRefillNanos = SystemClock.elapsedRealtimeNanos();
+    private long mNextScheduleCheck;
+
+    /**
+     * Limit the downloads to the given speed, in bytes per second, during the
+     * given hours. A limit of 0 disables the limiter.
+     *
+     * @param schedule comma separated intervals like 08:00-18:00, which can
+     * wrap around midnight. The limit always applies if null or empty
+     */
+    public synchronized void setLimit(long bytesPerSecond, String schedule) {
+        mLimit = Math.max(bytesPerSecond, 0);
+        mSchedule = parseSchedule(schedule);
+        updateRate(true);
+    }
+
+    /**
+     * Change the limit without changing when it applies, for limits that are
+     * adjusted continuously.
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        mLimit = Math.max(bytesPerSecond, 0);
+        updateRate(true);
+    }
+
+    /**
+     * Temporarily lift the limit, or restore it.
+     */
+    public synchronized void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+        updateRate(true);
+    }
+
+    /**
+     * @return the current limit in bytes per second, 0 if there's none
+     */
+    public synchronized long getRate() {
+        updateRate(false);
+        return mRate;
+    }
+
+    /**
+     * Pay for the given number of bytes. The bucket can go into debt, call
+     * await() before reading more.
+     */
+    public synchronized void consume(long bytes) {
+        refill();
+        mConsumedBytes += bytes;
+        if (mRate > 0) {
+            mTokens -= bytes;
+        }
+    }
+
+    /**
+     * Wait until the debt is paid back, or at most the given time. Changes of
+     * the limit wake the waiting threads.
+     *
+     * @return true if more data can be read
+     */
+    public synchronized boolean await(long maxMillis) throws InterruptedException {
+        refill();
+        if (mRate <= 0 || mTokens >= 0) {
+            return true;
+        }
+        long millis = (long) Math.ceil(-mTokens * 1000 / mRate);
+        wait(Math.max(1, Math.min(millis, maxMillis)));
+        refill();
+        return mRate <= 0 || mTokens >= 0;
+    }
+
+    /**
+     * @return how many bytes were paid for since the limiter was created
+     */
+    public synchronized long getConsumedBytes() {
+        return mConsumedBytes;
+    }
+
+    private void refill() {
+        updateRate(false);
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mRate > 0) {
+            double burst = Math.max(MIN_BURST_BYTES, mRate * BURST_MILLIS / 1000);
+            mTokens = Math.min(burst, mTokens + (now - mLastRefillNanos) * (double) mRate / 1e9);
+        } else {
+            mTokens = 0;
+        }
+        mLastRefillNanos = now;
+    }
+
+    private void updateRate(boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now < mNextScheduleCheck) {
+            return;
+        }
+        mNextScheduleCheck = now + SCHEDULE_CHECK_INTERVAL_MS;
+        long rate = mSuspended || !isScheduled() ? 0 : mLimit;
+        if (rate != mRate) {
+            if ((rate > 0) != (mRate > 0)) {
+                Log.d(TAG, rate > 0 ? "Limiting the downloads to " + rate + " B/s" :
+                        "Not limiting the downloads");
+            }
+            // Keep the debt, but not the data allowed at the previous rate
+            mTokens = Math.min(mTokens, 0);
+            mLastRefillNanos = SystemClock.elapsedRealtimeNanos();
+            mRate = rate;
+            notifyAll();
+        }
+    }
+
+    private boolean isScheduled() {
+        if (mSchedule.length == 0) {
+            return true;
+        }
+        Calendar calendar = Calendar.getInstance();
+        int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        for (int i = 0; i < mSchedule.length; i += 2) {
+            int start = mSchedule[i];
+            int end = mSchedule[i + 1];
+            if (start <= end ? minute >= start && minute < end :
+                    minute >= start || minute < end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] parseSchedule(String schedule) {
+        List<Integer> minutes = new ArrayList<>();
+        if (schedule != null && !schedule.trim().isEmpty()) {
+            for (String interval : schedule.split(",")) {
+                String[] bounds = interval.trim().split("-");
+                try {
+                    if (bounds.length != 2) {
+                        throw new IllegalArgumentException();
+                    }
+                    int start = parseTime(bounds[0]);
+                    int end = parseTime(bounds[1]);
+                    minutes.add(start);
+                    minutes.add(end);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Invalid interval " + interval);
+                }
+            }
+        }
+        int[] result = new int[minutes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = minutes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the minute of the day of the given HH:MM time
+     */
+    private static int parseTime(String time) {
+        String[] parts = time.trim().split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException();
+        }
+        int minute = Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+        if (minute < 0 || minute > MINUTES_PER_DAY) {
+            throw new IllegalArgumentException();
+        }
+        return minute;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded set of reusable direct buffers. The buffers are only allocated
+ * when needed, and once all of them are in use acquire() blocks until one is
+ * released, which throttles the producers to the speed of the consumers.
+ */
+class BufferPool {
+
+    private final int mBufferSize;
+    private final int mCapacity;
+    private final BlockingQueue<ByteBuffer> mFreeBuffers;
+
+    private int mAllocated;
+    private long mWaitMillis;
+
+    BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mCapacity = capacity;
+        mFreeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return an empty buffer, waiting for one to be released if needed
+     */
+    ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            synchronized (this) {
+                if (mAllocated < mCapacity) {
+                    mAllocated++;
+                    return ByteBuffer.allocateDirect(mBufferSize);
+                }
+            }
+            long start = SystemClock.elapsedRealtime();
+            buffer = mFreeBuffers.take();
+            synchronized (this) {
+                mWaitMillis += SystemClock.elapsedRealtime() - start;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    synchronized int getAllocated() {
+        return mAllocated;
+    }
+
+    /**
+     * @return how long acquire() waited for buffers to be released
+     */
+    synchronized long getWaitMillis() {
+        return mWaitMillis;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-256 digests of the fixed-size chunks of an update, used to find which
+ * parts of a download are corrupted:
+ *
+ * { "chunk_size": 16777216, "sha256": [ "...", "..." ] }
+ */
+public class ChunkManifest {
+
+    private static final String TAG = "ChunkManifest";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final long mChunkSize;
+    private final String[] mDigests;
+
+    private ChunkManifest(long chunkSize, String[] digests) {
+        mChunkSize = chunkSize;
+        mDigests = digests;
+    }
+
+    public static ChunkManifest read(File file) throws IOException, JSONException {
+        StringBuilder json = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                json.append(line);
+            }
+        }
+        JSONObject object = new JSONObject(json.toString());
+        long chunkSize = object.getLong("chunk_size");
+        JSONArray digests = object.getJSONArray("sha256");
+        if (chunkSize <= 0 || digests.length() == 0) {
+            throw new JSONException("Invalid chunk manifest");
+        }
+        String[] result = new String[digests.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = digests.getString(i);
+        }
+        return new ChunkManifest(chunkSize, result);
+    }
+
+    /**
+     * Compare the chunks of the given download with the manifest and create a
+     * journal where only the corrupted ones are incomplete, so that resuming the
+     * download fetches them again.
+     *
+     * @return the number of corrupted chunks
+     * @throws IOException if the file can't be read or doesn't match the manifest
+     */
+    public int markCorruptedChunks(File file, File journalFile) throws IOException {
+        long length = file.length();
+        if ((length + mChunkSize - 1) / mChunkSize != mDigests.length) {
+            throw new IOException("The manifest doesn't match the size of " + file);
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        DownloadJournal journal = new DownloadJournal(journalFile, length);
+        journal.setComplete(0, length);
+        int corrupted = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            for (int i = 0; i < mDigests.length; i++) {
+                long start = i * mChunkSize;
+                long end = Math.min(start + mChunkSize, length);
+                for (long position = start; position < end; ) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                    int count = channel.read(buffer, position);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += count;
+                }
+                if (!toHexString(digest.digest()).equalsIgnoreCase(mDigests[i])) {
+                    Log.d(TAG, "Chunk " + i + " is corrupted");
+                    journal.setIncomplete(start, end);
+                    corrupted++;
+                }
+            }
+        }
+        if (corrupted > 0) {
+            journal.write();
+        }
+        return corrupted;
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Opens the HTTP connections of the updater. HttpURLConnection keeps the
+ * connections alive in a pool shared by the whole process, but only those whose
+ * response was read to the end and that weren't disconnected. Releasing the
+ * connections here keeps them reusable whenever possible, so that resuming a
+ * download or switching mirrors doesn't pay for a new handshake.
+ *
+ * The targets of the redirects followed to find the mirrors are cached too, so
+ * that resuming goes straight to the mirror.
+ */
+public class ConnectionManager {
+
+    private static final String TAG = "ConnectionManager";
+
+    // Redirects are cached for at most this long, or what the server allows
+    private static final long REDIRECT_TTL_MS = 10 * 60 * 1000;
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+
+    // Only small responses are read to the end just to reuse their connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final ConnectionManager sInstance = new ConnectionManager();
+
+    /**
+     * Where a URL redirects to, along with the duplicate links it advertised
+     */
+    public static class Redirect {
+        private final String mLocation;
+        private final List<String> mLinks;
+        private final long mExpires;
+
+        private Redirect(String location, List<String> links, long expires) {
+            mLocation = location;
+            mLinks = links;
+            mExpires = expires;
+        }
+
+        public String getLocation() {
+            return mLocation;
+        }
+
+        public List<String> getLinks() {
+            return mLinks;
+        }
+    }
+
+    private final Map<String, Redirect> mRedirects = new HashMap<>();
+    private long mCachedRedirects;
+
+    public static ConnectionManager getInstance() {
+        return sInstance;
+    }
+
+    private ConnectionManager() {
+    }
+
+    public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * Done with the connection, whose input stream must be closed already.
+     *
+     * @param complete whether the response was read to the end. The connection
+     * is disconnected otherwise, it couldn't be used for another request
+     */
+    public void release(HttpURLConnection connection, boolean complete) {
+        if (!complete) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read what's left of a small response, like a redirect, so that its
+     * connection can be reused.
+     *
+     * @return the value to release the connection with
+     */
+    public boolean drain(HttpURLConnection connection) {
+        boolean complete = false;
+        try {
+            long length = connection.getContentLengthLong();
+            if (length >= 0 && length <= MAX_DRAIN_BYTES) {
+                try (InputStream is = connection.getResponseCode() < 400 ?
+                        connection.getInputStream() : connection.getErrorStream()) {
+                    if (is != null) {
+                        byte[] buffer = new byte[8192];
+                        while (is.read(buffer) >= 0) {
+                            // Discard
+                        }
+                    }
+                }
+                complete = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the response of " + connection.getURL(), e);
+        }
+        return complete;
+    }
+
+    /**
+     * @return where the given URL redirected to recently, or null
+     */
+    public synchronized Redirect getRedirect(String url) {
+        Redirect redirect = mRedirects.get(url);
+        if (redirect != null && SystemClock.elapsedRealtime() >= redirect.mExpires) {
+            mRedirects.remove(url);
+            redirect = null;
+        }
+        if (redirect != null) {
+            mCachedRedirects++;
+        }
+        return redirect;
+    }
+
+    /**
+     * Remember the redirect the given connection received, as long as its
+     * Cache-Control header allows.
+     *
+     * @param links the duplicate links advertised along with the redirect
+     */
+    public void putRedirect(String url, HttpURLConnection connection, List<String> links) {
+        String location = connection.getHeaderField("Location");
+        if (location == null) {
+            return;
+        }
+        long ttl = REDIRECT_TTL_MS;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.ROOT);
+            Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+            if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")) {
+                return;
+            } else if (matcher.find()) {
+                try {
+                    ttl = Math.min(ttl, Long.parseLong(matcher.group(1)) * 1000);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+            }
+        }
+        if (ttl <= 0) {
+            return;
+        }
+        List<String> linksCopy = links != null ?
+                Collections.unmodifiableList(new ArrayList<>(links)) : Collections.emptyList();
+        synchronized (this) {
+            mRedirects.put(url, new Redirect(location, linksCopy,
+                    SystemClock.elapsedRealtime() + ttl));
+        }
+    }
+
+    /**
+     * Forget the redirect of the given URL, because its target didn't work.
+     */
+    public synchronized void invalidateRedirect(String url) {
+        mRedirects.remove(url);
+    }
+
+    public synchronized void logStats() {
+        Log.d(TAG, mCachedRedirects + " redirects skipped");
+    }
+}
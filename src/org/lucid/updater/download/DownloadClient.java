@@ -28,12 +28,52 @@ public interface DownloadClient {
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() if the downloaded file doesn't match the
+         * digest given with Builder.setSha256().
+         */
+        default void onVerificationFailure(File destination) {
+            onFailure(false);
+        }
     }
 
     interface ProgressListener {
         void update(long bytesRead, long contentLength, long speed, long eta, boolean done);
     }
 
+    interface SpaceAllocator {
+        /**
+         * Called from the download thread before anything is written, with the
+         * number of bytes the destination still needs.
+         *
+         * @throws IOException if there isn't enough space, which fails the download
+         */
+        void allocate(long bytes) throws IOException;
+    }
+
+    /**
+     * How often the downloaded data is flushed to the storage, and recorded in
+     * the journal if any.
+     */
+    enum Durability {
+        /**
+         * Only flush when the download stops. A crash can lose everything
+         * downloaded since the last time the download was started.
+         */
+        NONE,
+        /**
+         * Also flush every few seconds or megabytes, which bounds what a crash
+         * can lose without slowing down the download noticeably.
+         */
+        PERIODIC,
+        /**
+         * Flush every write before considering it done. A crash only loses the
+         * blocks that were being written, at the cost of much slower downloads.
+         */
+        STRICT,
+    }
+
     interface Headers {
         String get(String name);
 
@@ -54,16 +94,40 @@ public interface DownloadClient {
     void resume();
 
     /**
-     * Cancel the download. This method has no effect if the download isn't ongoing.
+     * Cancel the download, aborting the ongoing transfers. Once the destination
+     * isn't written anymore, DownloadCallback.onFailure() is called with cancelled
+     * set to true. This method has no effect if the download isn't ongoing.
+     *
+     * @return true if onFailure() will confirm that the download stopped, false if
+     * the download wasn't ongoing or its outcome was already reported
+     */
+    boolean cancel();
+
+    /**
+     * Download at full speed even if Builder.setScavenger() was used, or go back
+     * to using only the unused bandwidth. This can be called at any time.
      */
-    void cancel();
+    void setScavengerSuspended(boolean suspended);
 
     final class Builder {
-        private String mUrl;
-        private File mDestination;
-        private DownloadClient.DownloadCallback mCallback;
-        private DownloadClient.ProgressListener mProgressListener;
-        private boolean mUseDuplicateLinks;
+        // Read by the constructor of the client
+        String mUrl;
+        File mDestination;
+        DownloadClient.DownloadCallback mCallback;
+        DownloadClient.ProgressListener mProgressListener;
+        boolean mUseDuplicateLinks;
+        int mSegments = 1;
+        boolean mUseMultipleSources;
+        MirrorScoreboard mScoreboard;
+        boolean mProbeMirrors;
+        String mSha256;
+        File mJournal;
+        DownloadClient.Durability mDurability = DownloadClient.Durability.PERIODIC;
+        long mRangeOffset = 0;
+        long mRangeLength = -1;
+        BandwidthLimiter mBandwidthLimiter;
+        boolean mScavenger;
+        DownloadClient.SpaceAllocator mSpaceAllocator;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -73,8 +137,7 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            return new HttpURLConnectionClient(this);
         }
 
         public Builder setUrl(String url) {
@@ -101,5 +164,107 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Download the file using up to the given number of parallel connections.
+         * This only has an effect if the server supports range requests.
+         */
+        public Builder setSegments(int segments) {
+            mSegments = segments;
+            return this;
+        }
+
+        /**
+         * Download the segments from all the duplicate links at the same time
+         * rather than using them only when the main one fails. Requires both
+         * setUseDuplicateLinks() and more than one segment.
+         */
+        public Builder setUseMultipleSources(boolean useMultipleSources) {
+            mUseMultipleSources = useMultipleSources;
+            return this;
+        }
+
+        /**
+         * Rank the duplicate links using, and update, the given scoreboard.
+         */
+        public Builder setMirrorScoreboard(MirrorScoreboard scoreboard) {
+            mScoreboard = scoreboard;
+            return this;
+        }
+
+        /**
+         * Fetch a small range from the best ranked duplicate links before choosing
+         * which one to use. Requires a mirror scoreboard.
+         */
+        public Builder setProbeMirrors(boolean probeMirrors) {
+            mProbeMirrors = probeMirrors;
+            return this;
+        }
+
+        /**
+         * Compute the SHA-256 digest of the file while downloading it and compare
+         * it with the given one, as lowercase hex string.
+         */
+        public Builder setSha256(String sha256) {
+            mSha256 = sha256;
+            return this;
+        }
+
+        /**
+         * Keep track of the parts of the file that are safely stored in the given
+         * file, so that resuming doesn't rely on the size of the destination.
+         * The journal is deleted once the download completes.
+         */
+        public Builder setJournal(File journal) {
+            mJournal = journal;
+            return this;
+        }
+
+        /**
+         * Choose how often the written data is flushed, PERIODIC by default.
+         */
+        public Builder setDurability(DownloadClient.Durability durability) {
+            mDurability = durability;
+            return this;
+        }
+
+        /**
+         * Only download the given part of the file, which is written at the
+         * beginning of the destination. Requires a server that supports range
+         * requests, the download fails otherwise.
+         */
+        public Builder setRange(long offset, long length) {
+            mRangeOffset = offset;
+            mRangeLength = length;
+            return this;
+        }
+
+        /**
+         * Limit the speed of the download with the given limiter, which can be
+         * shared with other downloads to limit their overall speed.
+         */
+        public Builder setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+            mBandwidthLimiter = bandwidthLimiter;
+            return this;
+        }
+
+        /**
+         * Only use the bandwidth left unused by the other traffic, slowing down
+         * when the delay to the server grows. Requires a server that supports
+         * range requests, the download runs at full speed otherwise.
+         */
+        public Builder setScavenger(boolean scavenger) {
+            mScavenger = scavenger;
+            return this;
+        }
+
+        /**
+         * Make room for the file with the given allocator once its size is known,
+         * before the first byte is written.
+         */
+        public Builder setSpaceAllocator(DownloadClient.SpaceAllocator spaceAllocator) {
+            mSpaceAllocator = spaceAllocator;
+            return this;
+        }
     }
 }
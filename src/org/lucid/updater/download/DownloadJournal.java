@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Records which blocks of a download are known to be on the storage, so that the
+ * download can be resumed even if it wasn't written sequentially or the tail of
+ * the file was lost. Blocks must only be marked as complete once their content
+ * was flushed to the storage.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    private static final int MAGIC = 0x4a445055; // "UPDJ"
+    private static final int VERSION = 1;
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final File mFile;
+    private final long mLength;
+    private final BitSet mCompleteBlocks;
+
+    DownloadJournal(File file, long length) {
+        this(file, length, new BitSet());
+    }
+
+    private DownloadJournal(File file, long length, BitSet completeBlocks) {
+        mFile = file;
+        mLength = length;
+        mCompleteBlocks = completeBlocks;
+    }
+
+    /**
+     * @return the journal stored in the given file, or null if it doesn't exist
+     * or it isn't valid
+     */
+    static DownloadJournal read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream is = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION ||
+                    is.readInt() != BLOCK_SIZE) {
+                throw new IOException("Unsupported journal");
+            }
+            long length = is.readLong();
+            byte[] bitmap = new byte[is.readInt()];
+            is.readFully(bitmap);
+            long checksum = crc.getValue();
+            if (is.readLong() != checksum || length <= 0) {
+                throw new IOException("Corrupted journal");
+            }
+            return new DownloadJournal(file, length, BitSet.valueOf(bitmap));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the download that are complete according to
+     * the given journal, or -1 if the journal doesn't exist or isn't valid
+     */
+    public static long getCompletedBytes(File file) {
+        DownloadJournal journal = read(file);
+        return journal != null ? journal.getCompletedBytes() : -1;
+    }
+
+    /**
+     * Atomically replace the journal on the storage.
+     */
+    void write() throws IOException {
+        File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream os = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(fos), crc));
+            byte[] bitmap = mCompleteBlocks.toByteArray();
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(BLOCK_SIZE);
+            os.writeLong(mLength);
+            os.writeInt(bitmap.length);
+            os.write(bitmap);
+            os.writeLong(crc.getValue());
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Could not delete " + mFile);
+        }
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    private int getBlockCount() {
+        return (int) ((mLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    private long getBlockStart(int block) {
+        return Math.min((long) block * BLOCK_SIZE, mLength);
+    }
+
+    /**
+     * Mark the blocks entirely contained in the given range as complete.
+     */
+    void setComplete(long start, long end) {
+        int first = (int) ((start + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        int last = end >= mLength ? getBlockCount() : (int) (end / BLOCK_SIZE);
+        if (first < last) {
+            mCompleteBlocks.set(first, last);
+        }
+    }
+
+    /**
+     * Mark all the blocks overlapping the given range as incomplete.
+     */
+    void setIncomplete(long start, long end) {
+        int first = (int) (start / BLOCK_SIZE);
+        int last = (int) Math.min((end + BLOCK_SIZE - 1) / BLOCK_SIZE, getBlockCount());
+        if (first < last) {
+            mCompleteBlocks.clear(first, last);
+        }
+    }
+
+    /**
+     * @return the start of the first incomplete block at or after the given
+     * offset, or the length of the file if there's none
+     */
+    long getNextIncomplete(long offset) {
+        if (offset >= mLength) {
+            return mLength;
+        }
+        return getBlockStart(mCompleteBlocks.nextClearBit((int) (offset / BLOCK_SIZE)));
+    }
+
+    /**
+     * @return the start of the first complete block at or after the given
+     * offset, or the length of the file if there's none
+     */
+    long getNextComplete(long offset) {
+        int block = mCompleteBlocks.nextSetBit((int) ((offset + BLOCK_SIZE - 1) / BLOCK_SIZE));
+        return block >= 0 ? getBlockStart(block) : mLength;
+    }
+
+    long getCompletedBytes() {
+        long bytes = (long) mCompleteBlocks.cardinality() * BLOCK_SIZE;
+        if (mCompleteBlocks.get(getBlockCount() - 1)) {
+            // The last block is usually shorter
+            bytes -= (long) getBlockCount() * BLOCK_SIZE - mLength;
+        }
+        return bytes;
+    }
+}
@@ -16,19 +16,38 @@
 package org.lucid.updater.download;
 
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,14 +55,79 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
-    private HttpURLConnection mClient;
+    // Don't split the file in segments smaller than this, it's not worth the
+    // additional connection
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int PROGRESS_INTERVAL_MS = 500;
+
+    // Number of mirrors probed before choosing which one to use
+    private static final int PROBE_CANDIDATES = 3;
+
+    // Number of times a transfer is resumed after failing without making progress
+    private static final int MAX_FAILOVER_ATTEMPTS = 5;
+    // Delay before resuming a failed transfer, doubled after each failure
+    // without progress
+    private static final int FAILOVER_DELAY_MS = 1000;
+    private static final int MAX_FAILOVER_DELAY_MS = 30000;
+    // Number of times the transfers of a download can be resumed in total
+    private static final int MAX_RETRIES = 50;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    // Connections receiving less than this while reading for STALL_WINDOW_MS are
+    // dropped, the read timeout doesn't catch those trickling a few bytes
+    private static final long STALL_MIN_SPEED = 1024;
+    private static final int STALL_WINDOW_MS = 20000;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // How often the workers waiting for the bandwidth limiter check if they
+    // were stopped, it bounds how long pausing takes
+    private static final int LIMITER_WAIT_MS = 50;
+
+    // The received data is written in blocks of this size, aligned to it. Must be
+    // smaller than MIN_SEGMENT_SIZE, see SegmentWorker.download()
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    // How many blocks each worker can receive before they're written
+    private static final int WRITE_BUFFERS_PER_WORKER = 4;
+
+    // How often the written data is flushed and recorded in the journal with
+    // Durability.PERIODIC, whichever comes first
+    private static final int CHECKPOINT_INTERVAL_MS = 5000;
+    private static final long CHECKPOINT_INTERVAL_BYTES = 64 * 1024 * 1024;
+    // How much data can be written without being flushed, whatever the durability.
+    // Dirty pages can't be dropped until they're written back, so a package that's
+    // only flushed at the end piles up in memory and pushes the other apps out.
+    private static final long WRITEBACK_INTERVAL_BYTES = 16 * 1024 * 1024;
+
+    // Closed from other threads by cancel()
+    private volatile HttpURLConnection mClient;
+    private final ConnectionManager mConnectionManager = ConnectionManager.getInstance();
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mSegments;
+    private final boolean mUseMultipleSources;
+    private final MirrorScoreboard mScoreboard;
+    private final boolean mProbeMirrors;
+    private final String mSha256;
+    private final File mJournalFile;
+    private final DownloadClient.Durability mDurability;
+    // Part of the remote file that is downloaded, mRangeLength is -1 for all of it
+    private final long mRangeOffset;
+    private final long mRangeLength;
+    private final BandwidthLimiter mBandwidthLimiter;
+    private final boolean mScavenger;
+    private final DownloadClient.SpaceAllocator mSpaceAllocator;
+    // Limits this download only, see ScavengerController
+    private final BandwidthLimiter mScavengerLimiter = new BandwidthLimiter();
 
     private DownloadThread mDownloadThread;
+    private DownloadJournal mJournal;
+    private long mResumeOffset;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -57,15 +141,28 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
     }
 
-    HttpURLConnectionClient(String url, File destination,
-            DownloadClient.ProgressListener progressListener,
-            DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
-        mDestination = destination;
-        mProgressListener = progressListener;
-        mCallback = callback;
-        mUseDuplicateLinks = useDuplicateLinks;
+    HttpURLConnectionClient(DownloadClient.Builder builder) throws IOException {
+        mClient = mConnectionManager.open(new URL(builder.mUrl));
+        setTimeouts(mClient);
+        mDestination = builder.mDestination;
+        mProgressListener = builder.mProgressListener;
+        mCallback = builder.mCallback;
+        mUseDuplicateLinks = builder.mUseDuplicateLinks;
+        mSegments = Math.max(builder.mSegments, 1);
+        mUseMultipleSources = builder.mUseMultipleSources;
+        mScoreboard = builder.mScoreboard;
+        mProbeMirrors = builder.mProbeMirrors;
+        mSha256 = builder.mSha256;
+        mJournalFile = builder.mJournal;
+        mDurability = builder.mDurability;
+        mRangeOffset = builder.mRangeOffset;
+        mRangeLength = builder.mRangeLength;
+        mBandwidthLimiter = builder.mBandwidthLimiter;
+        mScavenger = builder.mScavenger;
+        mSpaceAllocator = builder.mSpaceAllocator;
+        if (mRangeLength >= 0) {
+            mClient.setRequestProperty("Range", getRange(0, mRangeLength));
+        }
     }
 
     @Override
@@ -87,13 +184,19 @@ public class HttpURLConnectionClient implements DownloadClient {
     }
 
     @Override
-    public void cancel() {
+    public boolean cancel() {
         if (mDownloadThread == null) {
             Log.e(TAG, "Not downloading");
-            return;
+            return false;
         }
-        mDownloadThread.interrupt();
+        boolean cancelled = mDownloadThread.abort();
         mDownloadThread = null;
+        return cancelled;
+    }
+
+    @Override
+    public void setScavengerSuspended(boolean suspended) {
+        mScavengerLimiter.setSuspended(suspended);
     }
 
     private void downloadFileResumeInternal() {
@@ -102,7 +205,20 @@ public class HttpURLConnectionClient implements DownloadClient {
             return;
         }
         long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        if (mJournalFile != null) {
+            mJournal = DownloadJournal.read(mJournalFile);
+        }
+        if (mJournal != null) {
+            // Restart from the first block that isn't known to be complete
+            offset = mJournal.getNextIncomplete(0);
+            if (offset == mJournal.getLength()) {
+                // Everything was written, but the download didn't complete
+                mJournal.setIncomplete(offset - 1, offset);
+                offset = mJournal.getNextIncomplete(0);
+            }
+        }
+        mResumeOffset = offset;
+        mClient.setRequestProperty("Range", getRange(offset, mRangeLength));
         downloadFileInternalCommon(true);
     }
 
@@ -116,6 +232,35 @@ public class HttpURLConnectionClient implements DownloadClient {
         mDownloadThread.start();
     }
 
+    /**
+     * @return the Range header for the given part of the destination, up to
+     * the end of the file if end is negative
+     */
+    private String getRange(long start, long end) {
+        return "bytes=" + (mRangeOffset + start) + "-" +
+                (end >= 0 ? String.valueOf(mRangeOffset + end - 1) : "");
+    }
+
+    private static void setTimeouts(HttpURLConnection connection) {
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @return how long to wait before retrying after the given number of
+     * consecutive failures
+     */
+    private static long getRetryDelay(int failures) {
+        long delay = Math.min((long) FAILOVER_DELAY_MS << Math.min(failures - 1, 16),
+                MAX_FAILOVER_DELAY_MS);
+        // Randomize it, so that the segments failing together don't retry together
+        return delay / 2 + (long) (Math.random() * (delay / 2));
+    }
+
+    private boolean isRanged() {
+        return mRangeLength >= 0;
+    }
+
     private static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
@@ -128,10 +273,98 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    /**
+     * @return the complete length from a "Content-Range: bytes a-b/length" header,
+     * or -1 if it isn't known
+     */
+    static long getCompleteLength(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int index = contentRange.lastIndexOf('/');
+        try {
+            return index >= 0 ? Long.parseLong(contentRange.substring(index + 1).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of bytes of storage used by the given file, which can be
+     * more than what was written once the file was preallocated
+     */
+    private static long getAllocatedBytes(FileDescriptor fd, FileChannel channel)
+            throws IOException {
+        try {
+            // st_blocks is always in 512 bytes units
+            return Os.fstat(fd).st_blocks * 512;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not get the allocated size", e);
+            return channel.size();
+        }
+    }
+
+    /**
+     * Reserve the space for the whole file, so that the download fails right away
+     * if the storage is full and the file isn't fragmented by the many small writes.
+     */
+    private static void preallocate(FileDescriptor fd, long length) throws IOException {
+        try {
+            Os.posix_fallocate(fd, 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + length + " bytes", e);
+            }
+            // Not every file system supports it, the space is allocated while writing
+            Log.e(TAG, "Could not preallocate " + length + " bytes", e);
+        }
+    }
+
+    /**
+     * A range of the destination file that still needs to be downloaded. The
+     * end of a segment can be moved backwards by another worker that steals
+     * the second half of it, so it must only be accessed with the owning
+     * DownloadThread lock held.
+     */
+    private static class Segment {
+        private long mPosition;
+        private long mEnd;
+
+        private Segment(long position, long end) {
+            mPosition = position;
+            mEnd = end;
+        }
+
+        private long getRemaining() {
+            return mEnd - mPosition;
+        }
+    }
+
+    /**
+     * Data received for the given offset of the destination file that still
+     * needs to be written.
+     */
+    private static class WriteRequest {
+        // Stops the DiskWriter once all the previous requests are handled
+        private static final WriteRequest END = new WriteRequest(-1, null);
+
+        private final long mPosition;
+        private final long mEnd;
+        private final ByteBuffer mBuffer;
+
+        private WriteRequest(long position, ByteBuffer buffer) {
+            mPosition = position;
+            mEnd = buffer != null ? position + buffer.remaining() : position;
+            mBuffer = buffer;
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
-        private long mTotalBytesRead = 0;
+        private long mSourceLength = -1;
+        private final AtomicLong mTotalBytesRead = new AtomicLong();
 
         private long mCurSampleBytes = 0;
         private long mLastMillis = 0;
@@ -140,6 +373,65 @@ public class HttpURLConnectionClient implements DownloadClient {
 
         private final boolean mResume;
 
+        // The URLs the file is downloaded from, the first one is the one mClient
+        // ended up using. The others are duplicate links, see handleDuplicateLinks()
+        private final List<URL> mSources = new ArrayList<>();
+
+        private final List<Segment> mPendingSegments = new ArrayList<>();
+        private final List<SegmentWorker> mWorkers = new ArrayList<>();
+        private volatile IOException mWorkerError;
+        private volatile boolean mStopWorkers;
+        // Wakes the threads waiting to retry when stopping
+        private final CountDownLatch mStopSignal = new CountDownLatch(1);
+
+        // Set by abort(), the callback is then only told that the download was
+        // cancelled, once it stopped. mFinished is set instead when the outcome
+        // of the download is reported, see finish().
+        private volatile boolean mCancelled;
+        private long mCancelMillis;
+        private boolean mFinished;
+        // Set once the destination is open. Interrupting the thread would then
+        // close the channel shared with the workers and the DiskWriter.
+        private boolean mFileOpen;
+
+        // Outcome of the connection attempts, and number of times the transfers
+        // were resumed, see MAX_RETRIES
+        private final AtomicInteger mAttempts = new AtomicInteger();
+        private final AtomicInteger mStalls = new AtomicInteger();
+        private final AtomicInteger mTimeouts = new AtomicInteger();
+        private final AtomicInteger mErrors = new AtomicInteger();
+        private final AtomicInteger mRetries = new AtomicInteger();
+
+        private ScavengerController mScavengerController;
+
+        // The workers only receive the data, the DiskWriter writes it. The received
+        // ranges stay in mPendingWrites until they're in the file.
+        private BufferPool mBufferPool;
+        private BlockingQueue<WriteRequest> mWriteQueue;
+        private final List<WriteRequest> mPendingWrites = new ArrayList<>();
+        private DiskWriter mDiskWriter;
+        // Whether an interrupted transfer can be continued with a range request
+        private boolean mCanFailover;
+
+        // The digest is fed in order, following the written bytes. The DiskWriter
+        // feeds it directly when a block continues it, the rest is read back from
+        // the file. Touching the pages a second time would mark them as recently
+        // used, which keeps them in the page cache at the expense of everything else.
+        private final Object mDigestLock = new Object();
+        private MessageDigest mDigest;
+        private long mReadPosition;
+        private ByteBuffer mReadBuffer;
+        // How much of the digest didn't need the file to be read back
+        private long mUnreadBytes;
+
+        // Checkpoints can be done by both this thread and the DiskWriter
+        private final Object mCheckpointLock = new Object();
+        private long mLastCheckpoint;
+        private long mCheckpointBytes;
+        private long mMaxUncheckedBytes;
+        private int mSyncs;
+        private long mSyncMillis;
+
         private DownloadThread(boolean resume) {
             mResume = resume;
         }
@@ -148,7 +440,8 @@ public class HttpURLConnectionClient implements DownloadClient {
             final long millis = SystemClock.elapsedRealtime();
             final long delta = millis - mLastMillis;
             if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                final long totalBytesRead = mTotalBytesRead.get();
+                final long curSpeed = ((totalBytesRead - mCurSampleBytes) * 1000) / delta;
                 if (mSpeed == -1) {
                     mSpeed = curSpeed;
                 } else {
@@ -156,81 +449,224 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
 
                 mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
+                mCurSampleBytes = totalBytesRead;
+                checkStalls(millis);
+            }
+        }
+
+        /**
+         * Drop the connections that receive too little, see STALL_MIN_SPEED. Their
+         * transfers are resumed like the failed ones.
+         */
+        private void checkStalls(long millis) {
+            List<SegmentWorker> workers;
+            synchronized (this) {
+                workers = new ArrayList<>(mWorkers);
+            }
+            for (SegmentWorker worker : workers) {
+                if (worker.isAlive()) {
+                    worker.checkStall(millis);
+                }
+            }
+        }
+
+        /**
+         * Send the first request, retrying if it fails before getting a response.
+         *
+         * @return the response code
+         */
+        private int connect() throws IOException {
+            URL url = mClient.getURL();
+            for (int failures = 1; ; failures++) {
+                mAttempts.incrementAndGet();
+                try {
+                    mClient.connect();
+                    return mClient.getResponseCode();
+                } catch (IOException e) {
+                    (e instanceof SocketTimeoutException ? mTimeouts : mErrors).incrementAndGet();
+                    if (mCancelled || failures > MAX_FAILOVER_ATTEMPTS) {
+                        throw e;
+                    }
+                    long delay = getRetryDelay(failures);
+                    Log.e(TAG, "Could not connect to " + url + ", retrying in " + delay + " ms", e);
+                    try {
+                        if (mStopSignal.await(delay, TimeUnit.MILLISECONDS)) {
+                            throw new InterruptedIOException();
+                        }
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                    // Start again from the original URL, the redirects might change
+                    changeClientUrl(url, false);
+                    mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                }
             }
         }
 
         private void calculateEta() {
             if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+                mEta = (mTotalBytes - mTotalBytesRead.get()) / mSpeed;
             }
         }
 
-        private void changeClientUrl(URL newUrl) throws IOException {
+        /**
+         * @param complete whether the response of the current connection was read
+         * to the end, so that the connection can be reused
+         */
+        private void changeClientUrl(URL newUrl, boolean complete) throws IOException {
             String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            mConnectionManager.release(mClient, complete);
+            mClient = mConnectionManager.open(newUrl);
+            setTimeouts(mClient);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
+            // abort() might have closed the previous one
+            if (mCancelled) {
+                throw new InterruptedIOException();
+            }
         }
 
-        private void handleDuplicateLinks() throws IOException {
+        /**
+         * @return the values of the Link headers of the current response
+         */
+        private List<String> getLinks() {
+            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
+                if ("Link".equalsIgnoreCase((entry.getKey()))) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Follow a redirect, choosing among its target and the duplicate links.
+         *
+         * @param complete whether the response of the current connection was read
+         * to the end, so that the connection can be reused
+         */
+        private void handleDuplicateLinks(String location, List<String> linkFields,
+                boolean complete) throws IOException {
             String protocol = mClient.getURL().getProtocol();
 
             class DuplicateLink {
                 private String mUrl;
                 private int mPriority;
+                private long mExpectedTime;
                 private DuplicateLink(String url, int priority) {
                     mUrl = url;
                     mPriority = priority;
+                    updateExpectedTime();
+                }
+                private void updateExpectedTime() {
+                    mExpectedTime = 0;
+                    if (mScoreboard != null) {
+                        try {
+                            mExpectedTime = mScoreboard.getExpectedTime(new URL(mUrl));
+                        } catch (MalformedURLException e) {
+                            mExpectedTime = Long.MAX_VALUE;
+                        }
+                    }
                 }
             }
 
+            // Prefer the mirrors that performed better in the past, if any
+            Comparator<DuplicateLink> comparator = Comparator
+                    .comparingLong((DuplicateLink d) -> d.mExpectedTime)
+                    .thenComparingInt(d -> d.mPriority);
+
             PriorityQueue<DuplicateLink> duplicates = null;
+            mSources.clear();
 
-            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
-                if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
-                    // https://tools.ietf.org/html/rfc6249
-                    // https://tools.ietf.org/html/rfc5988#section-5
-                    String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
-                    Pattern pattern = Pattern.compile(regex);
-                    for (String field : entry.getValue()) {
-                        Matcher matcher = pattern.matcher(field);
-                        if (matcher.matches()) {
-                            String url = matcher.group(1);
-                            String pri = matcher.group(2);
-                            int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
-                        } else {
-                            Log.d(TAG, "Ignoring link " + field);
+            if (linkFields != null) {
+                duplicates = new PriorityQueue<>(linkFields.size(), comparator);
+
+                // https://tools.ietf.org/html/rfc6249
+                // https://tools.ietf.org/html/rfc5988#section-5
+                String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
+                Pattern pattern = Pattern.compile(regex);
+                for (String field : linkFields) {
+                    Matcher matcher = pattern.matcher(field);
+                    if (matcher.matches()) {
+                        String url = matcher.group(1);
+                        String pri = matcher.group(2);
+                        int priority = pri != null ? Integer.parseInt(pri) : 999999;
+                        duplicates.add(new DuplicateLink(url, priority));
+                        Log.d(TAG, "Adding duplicate link " + url);
+                    } else {
+                        Log.d(TAG, "Ignoring link " + field);
+                    }
+                }
+            }
+
+            String newUrl = location;
+            if (mScoreboard != null && duplicates != null) {
+                // Rank the target of the redirect along with the duplicates
+                duplicates.add(new DuplicateLink(newUrl, -1));
+                if (mProbeMirrors && duplicates.size() > 1) {
+                    List<DuplicateLink> links = new ArrayList<>();
+                    List<URL> candidates = new ArrayList<>();
+                    while (!duplicates.isEmpty()) {
+                        DuplicateLink link = duplicates.poll();
+                        links.add(link);
+                        if (candidates.size() < PROBE_CANDIDATES) {
+                            try {
+                                candidates.add(new URL(link.mUrl));
+                            } catch (MalformedURLException e) {
+                                Log.e(TAG, "Ignoring malformed link " + link.mUrl);
+                            }
                         }
                     }
+                    mScoreboard.probe(candidates);
+                    for (DuplicateLink link : links) {
+                        link.updateExpectedTime();
+                        duplicates.add(link);
+                    }
                 }
+                newUrl = duplicates.poll().mUrl;
             }
 
-            String newUrl = mClient.getHeaderField("Location");
             for (;;) {
+                URL url = null;
                 try {
-                    URL url = new URL(newUrl);
+                    url = new URL(newUrl);
                     if (!url.getProtocol().equals(protocol)) {
                         // If we hadn't handled duplicate links, we wouldn't have
                         // used this url.
                         throw new IOException("Protocol changes are not allowed");
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
+                    changeClientUrl(url, complete);
+                    complete = false;
+                    long start = SystemClock.elapsedRealtime();
                     mClient.connect();
+                    long connected = SystemClock.elapsedRealtime();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    if (mScoreboard != null) {
+                        mScoreboard.addConnection(url, connected - start,
+                                SystemClock.elapsedRealtime() - connected);
+                    }
+                    if (duplicates != null) {
+                        // Keep the remaining mirrors around, the download can be
+                        // split among them or continue from them if a mirror fails
+                        for (DuplicateLink link; (link = duplicates.poll()) != null; ) {
+                            try {
+                                URL source = new URL(link.mUrl);
+                                if (source.getProtocol().equals(protocol)) {
+                                    mSources.add(source);
+                                }
+                            } catch (MalformedURLException e) {
+                                Log.e(TAG, "Ignoring malformed link " + link.mUrl);
+                            }
+                        }
+                    }
                     return;
                 } catch (IOException e) {
+                    if (mScoreboard != null && url != null) {
+                        mScoreboard.addFailure(url);
+                    }
                     if (duplicates != null && !duplicates.isEmpty()) {
                         DuplicateLink link = duplicates.poll();
                         duplicates.remove(link);
@@ -243,63 +679,1057 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        private synchronized URL getSource(int index) {
+            return mUseMultipleSources ? mSources.get(index % mSources.size()) : mSources.get(0);
+        }
+
+        /**
+         * @return the source to use after the given one failed, which is the
+         * same one if there are no other sources
+         */
+        private synchronized URL getNextSource(URL source) {
+            for (int i = 0; i < mSources.size(); i++) {
+                if (mSources.get(i) == source) {
+                    return mSources.get((i + 1) % mSources.size());
+                }
+            }
+            return mSources.get(0);
+        }
+
+        private synchronized URL dropSource(URL source) {
+            // The first source is the one that served the initial request, never drop it.
+            // Don't use URL.equals(), it resolves the host names.
+            for (int i = 1; i < mSources.size(); i++) {
+                if (mSources.get(i) == source) {
+                    mSources.remove(i);
+                    break;
+                }
+            }
+            return mSources.get(0);
+        }
+
+        private boolean acceptsRanges(int responseCode) {
+            return isPartialContentCode(responseCode) ||
+                    "bytes".equalsIgnoreCase(mClient.getHeaderField("Accept-Ranges"));
+        }
+
+        /**
+         * Split the given segment in up to mSegments segments of equal size.
+         */
+        private void splitSegment(Segment segment) {
+            long count = Math.min(mSegments, segment.getRemaining() / MIN_SEGMENT_SIZE);
+            if (count < 2) {
+                return;
+            }
+            long size = segment.getRemaining() / count;
+            long end = segment.mEnd;
+            segment.mEnd = segment.mPosition + size;
+            for (long start = segment.mEnd; start < end; start += size) {
+                long segmentEnd = end - start < size * 2 ? end : start + size;
+                mPendingSegments.add(new Segment(start, segmentEnd));
+                if (segmentEnd == end) {
+                    break;
+                }
+            }
+            Log.d(TAG, "Downloading in " + (mPendingSegments.size() + 1) + " segments");
+        }
+
+        /**
+         * Take over part of the segment that will take the longest to complete, so
+         * that workers that are done can help slower ones. The segment is split
+         * according to the throughput of the two workers, so that both should
+         * complete at the same time.
+         *
+         * @return the new segment, or null if there's nothing worth stealing
+         */
+        private synchronized Segment stealSegment(SegmentWorker thief) {
+            SegmentWorker victim = null;
+            long victimTime = 0;
+            for (SegmentWorker worker : mWorkers) {
+                Segment segment = worker.mSegment;
+                if (worker == thief || segment == null) {
+                    continue;
+                }
+                long speed = worker.getSpeed();
+                long time = speed > 0 ? segment.getRemaining() * 1000 / speed :
+                        segment.getRemaining();
+                if (victim == null || time > victimTime) {
+                    victim = worker;
+                    victimTime = time;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            long remaining = victim.mSegment.getRemaining();
+            long thiefSpeed = thief.getSpeed();
+            long victimSpeed = victim.getSpeed();
+            long keep = remaining / 2;
+            if (thiefSpeed > 0 && victimSpeed > 0) {
+                keep = (long) (remaining * ((double) victimSpeed / (victimSpeed + thiefSpeed)));
+            }
+            keep = Math.max(keep, MIN_SEGMENT_SIZE);
+            if (remaining - keep < MIN_SEGMENT_SIZE) {
+                return null;
+            }
+            long middle = victim.mSegment.mPosition + keep;
+            Segment segment = new Segment(middle, victim.mSegment.mEnd);
+            victim.mSegment.mEnd = middle;
+            return segment;
+        }
+
+        private synchronized Segment nextSegment(SegmentWorker worker) {
+            Segment segment = null;
+            if (!mPendingSegments.isEmpty()) {
+                segment = mPendingSegments.remove(0);
+            } else if (worker.mCanSteal) {
+                segment = stealSegment(worker);
+            }
+            // Assign it here, or getContiguousBytes() could skip the range
+            worker.mSegment = segment;
+            return segment;
+        }
+
+        /**
+         * @return the offset of the first byte that hasn't been written yet
+         */
+        private synchronized long getContiguousBytes() {
+            long offset = Long.MAX_VALUE;
+            for (Segment segment : mPendingSegments) {
+                offset = Math.min(offset, segment.mPosition);
+            }
+            for (SegmentWorker worker : mWorkers) {
+                Segment segment = worker.mSegment;
+                if (segment != null && segment.getRemaining() > 0) {
+                    offset = Math.min(offset, segment.mPosition);
+                }
+            }
+            for (WriteRequest request : mPendingWrites) {
+                offset = Math.min(offset, request.mPosition);
+            }
+            return offset;
+        }
+
+        /**
+         * Stop the download as soon as possible. The connections are closed, the
+         * blocked reads wouldn't notice an interrupt until they receive something.
+         *
+         * @return false if the outcome of the download was already reported
+         */
+        private boolean abort() {
+            List<SegmentWorker> workers;
+            synchronized (this) {
+                if (mFinished) {
+                    return false;
+                }
+                mCancelled = true;
+                mCancelMillis = SystemClock.elapsedRealtime();
+                mStopWorkers = true;
+                if (!mFileOpen) {
+                    // Wake the thread if it's waiting for the mirrors to be probed
+                    interrupt();
+                }
+                workers = new ArrayList<>(mWorkers);
+            }
+            mStopSignal.countDown();
+            mClient.disconnect();
+            for (SegmentWorker worker : workers) {
+                worker.abort();
+            }
+            return true;
+        }
+
+        /**
+         * Claim the right to report the outcome of the download, if it wasn't
+         * cancelled. Otherwise only the cancellation is reported, at the end of run().
+         */
+        private synchronized boolean finish() {
+            mFinished = !mCancelled;
+            return mFinished;
+        }
+
+        private void startWorker(SegmentWorker worker) {
+            synchronized (this) {
+                mWorkers.add(worker);
+            }
+            worker.start();
+        }
+
+        private void stopWorkers() {
+            // Don't interrupt the workers, that would close the channel they share
+            mStopWorkers = true;
+            mStopSignal.countDown();
+            boolean interrupted = false;
+            for (SegmentWorker worker : mWorkers) {
+                while (worker.isAlive()) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (mCancelled) {
+                Log.d(TAG, "Transfers stopped " +
+                        (SystemClock.elapsedRealtime() - mCancelMillis) + " ms after cancelling");
+            }
+            if (mDiskWriter != null) {
+                // Write what the workers already received
+                mWriteQueue.add(WriteRequest.END);
+                while (mDiskWriter.isAlive()) {
+                    try {
+                        mDiskWriter.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                Log.d(TAG, "Wrote " + mDiskWriter.mBytes + " bytes with " +
+                        mDiskWriter.mWrites + " writes and " + mDiskWriter.mWritebacks +
+                        " writebacks in " + mDiskWriter.mWriteMillis + " ms, " +
+                        mBufferPool.getAllocated() + " buffers used, " +
+                        mBufferPool.getWaitMillis() + " ms waiting for the storage");
+            }
+            if (interrupted) {
+                interrupt();
+            }
+        }
+
+        /**
+         * Feed the digest with the bytes written up to the given offset.
+         */
+        private void readWrittenBytes(FileChannel channel, long end) throws IOException {
+            if (mReadBuffer == null) {
+                return;
+            }
+            if (end == Long.MAX_VALUE) {
+                end = channel.size();
+            }
+            for (;;) {
+                if (mCancelled) {
+                    throw new InterruptedIOException();
+                }
+                synchronized (mDigestLock) {
+                    if (mReadPosition >= end) {
+                        break;
+                    }
+                    mReadBuffer.clear();
+                    mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(),
+                            end - mReadPosition));
+                    int count = channel.read(mReadBuffer, mReadPosition);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    if (mDigest != null) {
+                        mReadBuffer.flip();
+                        mDigest.update(mReadBuffer);
+                    }
+                    mReadPosition += count;
+                }
+            }
+        }
+
+        /**
+         * Feed the digest with a block that was just written, if it's the next one.
+         */
+        private void digestWrittenBlock(long position, ByteBuffer buffer) {
+            synchronized (mDigestLock) {
+                if (mDigest != null && position == mReadPosition) {
+                    mReadPosition += buffer.remaining();
+                    mUnreadBytes += buffer.remaining();
+                    mDigest.update(buffer);
+                }
+            }
+        }
+
+        private boolean verifyDigest() {
+            if (mSha256 == null) {
+                return true;
+            }
+            if (mDigest == null) {
+                Log.e(TAG, "SHA-256 wasn't computed");
+                return false;
+            }
+            StringBuilder digest = new StringBuilder();
+            for (byte b : mDigest.digest()) {
+                digest.append(Character.forDigit((b >> 4) & 0xf, 16));
+                digest.append(Character.forDigit(b & 0xf, 16));
+            }
+            if (!digest.toString().equalsIgnoreCase(mSha256)) {
+                Log.e(TAG, "SHA-256 mismatch, expected " + mSha256 + " got " + digest);
+                return false;
+            }
+            Log.d(TAG, "SHA-256 verified, " + mUnreadBytes + " of " + mReadPosition +
+                    " bytes digested without reading them back");
+            return true;
+        }
+
+        private void openJournal() throws IOException {
+            if (mJournal == null) {
+                // Everything before the requested offset is assumed to be valid
+                mJournal = new DownloadJournal(mJournalFile, mTotalBytes);
+                mJournal.setComplete(0, mTotalBytesRead.get());
+                mJournal.write();
+            } else if (mJournal.getLength() != mTotalBytes) {
+                throw new IOException("The size of the file changed from " +
+                        mJournal.getLength() + " to " + mTotalBytes);
+            }
+        }
+
+        /**
+         * Flush the written data and mark the blocks that are now complete in the
+         * journal, if any. Only what was written before the flush can be marked.
+         */
+        private void checkpoint(FileChannel channel) throws IOException {
+            synchronized (mCheckpointLock) {
+                List<Segment> missing = new ArrayList<>();
+                long bytes;
+                synchronized (this) {
+                    for (Segment segment : mPendingSegments) {
+                        missing.add(new Segment(segment.mPosition, segment.mEnd));
+                    }
+                    for (SegmentWorker worker : mWorkers) {
+                        Segment segment = worker.mSegment;
+                        if (segment != null && segment.getRemaining() > 0) {
+                            missing.add(new Segment(segment.mPosition, segment.mEnd));
+                        }
+                    }
+                    for (WriteRequest request : mPendingWrites) {
+                        missing.add(new Segment(request.mPosition, request.mEnd));
+                    }
+                    bytes = mTotalBytesRead.get();
+                }
+                long start = SystemClock.elapsedRealtime();
+                channel.force(false);
+                if (mJournal != null) {
+                    missing.sort(Comparator.comparingLong(segment -> segment.mPosition));
+                    long position = 0;
+                    for (Segment segment : missing) {
+                        mJournal.setComplete(position, segment.mPosition);
+                        position = Math.max(position, segment.mEnd);
+                    }
+                    mJournal.setComplete(position, mTotalBytes);
+                    mJournal.write();
+                }
+                mLastCheckpoint = SystemClock.elapsedRealtime();
+                mSyncs++;
+                mSyncMillis += mLastCheckpoint - start;
+                // What a crash before this checkpoint could have lost
+                mMaxUncheckedBytes = Math.max(mMaxUncheckedBytes, bytes - mCheckpointBytes);
+                mCheckpointBytes = bytes;
+            }
+        }
+
+        private boolean isCheckpointDue() {
+            if (mDurability != DownloadClient.Durability.PERIODIC) {
+                return false;
+            }
+            synchronized (mCheckpointLock) {
+                return SystemClock.elapsedRealtime() - mLastCheckpoint >=
+                        CHECKPOINT_INTERVAL_MS ||
+                        mTotalBytesRead.get() - mCheckpointBytes >= CHECKPOINT_INTERVAL_BYTES;
+            }
+        }
+
+        private void updateProgress(boolean done) {
+            calculateSpeed();
+            calculateEta();
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead.get(), mTotalBytes, mSpeed, mEta, done);
+            }
+        }
+
         @Override
         public void run() {
             try {
-                mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
-                mClient.connect();
-                int responseCode = mClient.getResponseCode();
+                URL originalUrl = mClient.getURL();
+                int responseCode = -1;
+                ConnectionManager.Redirect redirect = mUseDuplicateLinks ?
+                        mConnectionManager.getRedirect(originalUrl.toString()) : null;
+                if (redirect != null) {
+                    Log.d(TAG, "Using the cached redirect of " + originalUrl);
+                    try {
+                        handleDuplicateLinks(redirect.getLocation(), redirect.getLinks(), false);
+                        responseCode = mClient.getResponseCode();
+                    } catch (IOException e) {
+                        if (mCancelled) {
+                            throw e;
+                        }
+                        Log.e(TAG, "Could not use the cached redirect of " + originalUrl, e);
+                        mConnectionManager.invalidateRedirect(originalUrl.toString());
+                        changeClientUrl(originalUrl, false);
+                    }
+                }
 
-                if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
-                    handleDuplicateLinks();
-                    responseCode = mClient.getResponseCode();
+                if (responseCode < 0) {
+                    mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                    responseCode = connect();
+                    if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
+                        List<String> links = getLinks();
+                        String location = mClient.getHeaderField("Location");
+                        mConnectionManager.putRedirect(originalUrl.toString(), mClient, links);
+                        handleDuplicateLinks(location, links, mConnectionManager.drain(mClient));
+                        responseCode = mClient.getResponseCode();
+                    }
                 }
 
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
-                if (mResume && isPartialContentCode(responseCode)) {
-                    mTotalBytesRead = mDestination.length();
+                if ((mResume || isRanged()) && isPartialContentCode(responseCode)) {
+                    mTotalBytesRead.set(mResumeOffset);
                     Log.d(TAG, "The server fulfilled the partial content request");
-                } else if (mResume || !isSuccessCode(responseCode)) {
+                } else if (mResume || isRanged() || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
-                    mCallback.onFailure(isInterrupted());
+                    if (finish()) {
+                        mCallback.onFailure(false);
+                    }
                     return;
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
+                synchronized (this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mFileOpen = true;
+                }
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                     FileChannel channel = file.getChannel()) {
+                    if (!mResume) {
+                        if (mJournalFile != null && mJournalFile.exists()) {
+                            mJournalFile.delete();
+                        }
+                        file.setLength(0);
+                    }
+                    if (mSha256 != null) {
+                        try {
+                            mDigest = MessageDigest.getInstance("SHA-256");
+                        } catch (NoSuchAlgorithmException e) {
+                            Log.e(TAG, "SHA-256 not available", e);
                         }
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+                    if (mDigest != null) {
+                        mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
                     }
 
-                    outputStream.flush();
+                    long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength >= 0 ? contentLength + mTotalBytesRead.get() : -1;
+                    // All the sources must serve a file of this length
+                    mSourceLength = isRanged() ? getCompleteLength(mClient) : mTotalBytes;
+
+                    if (mSpaceAllocator != null && mTotalBytes > 0) {
+                        mSpaceAllocator.allocate(Math.max(mTotalBytes -
+                                getAllocatedBytes(file.getFD(), channel), 0));
+                    }
+
+                    mCanFailover = mTotalBytes > 0 && acceptsRanges(responseCode);
+                    if (mScavenger && mCanFailover) {
+                        mScavengerController = new ScavengerController(mClient.getURL(),
+                                mScavengerLimiter);
+                        mScavengerController.start();
+                    }
+                    if (mJournalFile != null && mCanFailover) {
+                        openJournal();
+                        // This changes the length of the file, which is fine now that
+                        // the journal tracks what was written
+                        preallocate(file.getFD(), mTotalBytes);
+                    }
 
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
+                    // The first segment is served by the connection we already opened
+                    Segment first = new Segment(mTotalBytesRead.get(),
+                            mTotalBytes >= 0 ? mTotalBytes : Long.MAX_VALUE);
+                    if (mJournal != null) {
+                        first.mEnd = mJournal.getNextComplete(first.mPosition);
+                        mTotalBytesRead.set(mJournal.getCompletedBytes());
+                    }
+                    if (mJournal != null) {
+                        // Fill the other holes left by the previous attempts
+                        for (long start = mJournal.getNextIncomplete(first.mEnd);
+                             start < mTotalBytes; ) {
+                            long end = mJournal.getNextComplete(start);
+                            mPendingSegments.add(new Segment(start, end));
+                            start = mJournal.getNextIncomplete(end);
+                        }
+                    }
+                    boolean segmented = mSegments > 1 && mCanFailover;
+                    if (segmented) {
+                        splitSegment(first);
+                    }
+                    mLastCheckpoint = SystemClock.elapsedRealtime();
+                    mCheckpointBytes = mTotalBytesRead.get();
+                    int buffers = mSegments * WRITE_BUFFERS_PER_WORKER;
+                    mBufferPool = new BufferPool(WRITE_BUFFER_SIZE, buffers);
+                    // Every buffer fits, plus WriteRequest.END
+                    mWriteQueue = new ArrayBlockingQueue<>(buffers + 1);
+                    mDiskWriter = new DiskWriter(channel);
+                    mDiskWriter.start();
+
+                    URL url = mClient.getURL();
+                    mSources.removeIf(source -> source.toString().equals(url.toString()));
+                    mSources.add(0, url);
+                    startWorker(new SegmentWorker(channel, first, mClient, getSource(0),
+                            segmented));
+                    for (int i = 1; i < mSegments; i++) {
+                        Segment segment;
+                        synchronized (this) {
+                            if (mPendingSegments.isEmpty()) {
+                                break;
+                            }
+                            segment = mPendingSegments.remove(0);
+                        }
+                        startWorker(new SegmentWorker(channel, segment, null, getSource(i),
+                                true));
+                    }
+                    if (mUseMultipleSources && mSources.size() > 1) {
+                        Log.d(TAG, "Downloading from " + mSources.size() + " sources");
+                    }
+
+                    boolean cancelled = false;
+                    try {
+                        for (SegmentWorker worker : mWorkers) {
+                            while (worker.isAlive() && !mCancelled) {
+                                worker.join(PROGRESS_INTERVAL_MS);
+                                if (mWorkerError != null) {
+                                    throw mWorkerError;
+                                }
+                                updateProgress(false);
+                                readWrittenBytes(channel, getContiguousBytes());
+                                if (isCheckpointDue()) {
+                                    checkpoint(channel);
+                                }
+                            }
+                        }
+                        cancelled = mCancelled;
+                        if (!cancelled && mWorkerError != null) {
+                            throw mWorkerError;
+                        }
+                    } catch (InterruptedException e) {
+                        cancelled = true;
+                    } finally {
+                        stopWorkers();
+                        long contiguousBytes = getContiguousBytes();
+                        if (contiguousBytes != Long.MAX_VALUE && mJournal != null) {
+                            try {
+                                checkpoint(channel);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not update the journal", e);
+                            }
+                        } else if (contiguousBytes != Long.MAX_VALUE) {
+                            // Resuming assumes that everything before the end of the file
+                            // was downloaded, so drop what was written past the first gap.
+                            file.setLength(contiguousBytes);
+                        }
+                        long uncheckedBytes = Math.max(mMaxUncheckedBytes,
+                                mTotalBytesRead.get() - mCheckpointBytes);
+                        Log.d(TAG, "Durability " + mDurability + ": " + mSyncs + " syncs in " +
+                                mSyncMillis + " ms, up to " + uncheckedBytes +
+                                " bytes could have been lost");
+                    }
+
+                    updateProgress(true);
+
+                    if (!cancelled) {
+                        readWrittenBytes(channel, channel.size());
+                        if (mJournal != null) {
+                            // Make sure the file is complete before forgetting the journal
+                            channel.force(false);
+                            mJournal.delete();
+                        }
+                    }
+
+                    if (cancelled || !finish()) {
+                        // Reported below
+                    } else if (!verifyDigest()) {
+                        mCallback.onVerificationFailure(mDestination);
                     } else {
                         mCallback.onSuccess(mDestination);
                     }
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
+                if (finish()) {
+                    Log.e(TAG, "Error downloading file", e);
+                    mCallback.onFailure(false);
+                }
             } finally {
-                mClient.disconnect();
+                if (mScavengerController != null) {
+                    mScavengerController.stop();
+                }
+                if (mWorkers.isEmpty()) {
+                    // Otherwise the first worker released it
+                    mConnectionManager.release(mClient, false);
+                }
+                Log.d(TAG, mAttempts + " connection attempts: " + mStalls + " stalled, " +
+                        mTimeouts + " timed out, " + mErrors + " failed otherwise, " +
+                        mRetries + " transfers resumed");
+                mConnectionManager.logStats();
+                if (mScoreboard != null) {
+                    for (URL source : mSources) {
+                        double stallRate = mScoreboard.getStallRate(source);
+                        if (stallRate > 0) {
+                            Log.d(TAG, source.getAuthority() + " stalled in " +
+                                    Math.round(stallRate * 100) + "% of the transfers");
+                        }
+                    }
+                    mScoreboard.save();
+                }
+                if (mCancelled) {
+                    // Nothing is written anymore, confirm it
+                    Log.d(TAG, "Stopped " + (SystemClock.elapsedRealtime() - mCancelMillis) +
+                            " ms after cancelling");
+                    mCallback.onFailure(true);
+                }
+            }
+        }
+
+        /**
+         * Downloads a segment of the file and writes it at its own offset in the
+         * destination. Once done, it keeps stealing work from the other segments.
+         */
+        private class SegmentWorker extends Thread {
+            private final FileChannel mChannel;
+            private final boolean mCanSteal;
+            private volatile HttpURLConnection mConnection;
+            private URL mSource;
+            private Segment mSegment;
+            // Where the response of mConnection ends
+            private long mResponseEnd;
+
+            // Used to measure the throughput of the worker
+            private volatile long mBytes;
+            private volatile long mStartMillis;
+
+            // Used to detect stalls, the time spent waiting for anything other than
+            // the server doesn't count, see checkStall()
+            private volatile long mReceivedBytes;
+            private volatile long mIdleSince = SystemClock.elapsedRealtime();
+            private volatile long mIdleMillis;
+            private volatile boolean mStalled;
+            private long mWindowStart;
+            private long mWindowBytes;
+            private long mWindowIdleMillis;
+
+            private SegmentWorker(FileChannel channel, Segment segment,
+                    HttpURLConnection connection, URL source, boolean canSteal) {
+                mChannel = channel;
+                mSegment = segment;
+                mConnection = connection;
+                mSource = source;
+                mCanSteal = canSteal;
+                // The first connection was opened for the rest of the file
+                mResponseEnd = mTotalBytes >= 0 ? mTotalBytes : Long.MAX_VALUE;
+            }
+
+            private long getSpeed() {
+                long millis = SystemClock.elapsedRealtime() - mStartMillis;
+                return millis > 0 && mStartMillis > 0 ? mBytes * 1000 / millis : -1;
+            }
+
+            private HttpURLConnection openConnection(Segment segment) throws IOException {
+                HttpURLConnection connection = mConnectionManager.open(mSource);
+                setTimeouts(connection);
+                synchronized (DownloadThread.this) {
+                    connection.setRequestProperty("Range",
+                            getRange(segment.mPosition, segment.mEnd));
+                    mResponseEnd = segment.mEnd;
+                }
+                // Let abort() close it while connecting
+                mConnection = connection;
+                if (mStopWorkers) {
+                    throw new InterruptedIOException();
+                }
+                long start = SystemClock.elapsedRealtime();
+                connection.connect();
+                long connected = SystemClock.elapsedRealtime();
+                int responseCode = connection.getResponseCode();
+                if (!isPartialContentCode(responseCode)) {
+                    connection.disconnect();
+                    throw new IOException("Range request failed with " + responseCode);
+                }
+                // Make sure all the sources serve the same file
+                long length = getCompleteLength(connection);
+                if (length != mSourceLength) {
+                    connection.disconnect();
+                    throw new IOException(mSource + " has a different length: " + length);
+                }
+                if (mScoreboard != null) {
+                    mScoreboard.addConnection(mSource, connected - start,
+                            SystemClock.elapsedRealtime() - connected);
+                }
+                return connection;
+            }
+
+            private HttpURLConnection openConnectionWithFallback(Segment segment)
+                    throws IOException {
+                for (;;) {
+                    try {
+                        return openConnection(segment);
+                    } catch (IOException e) {
+                        if (mConnection != null) {
+                            mConnection.disconnect();
+                            mConnection = null;
+                        }
+                        if (mScoreboard != null) {
+                            mScoreboard.addFailure(mSource);
+                        }
+                        URL fallback = dropSource(mSource);
+                        if (fallback == mSource) {
+                            throw e;
+                        }
+                        Log.e(TAG, "Could not use " + mSource + ", using " + fallback, e);
+                        mSource = fallback;
+                    }
+                }
+            }
+
+            /**
+             * @return true if the whole response was read
+             */
+            private boolean download(InputStream inputStream) throws IOException {
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                while (!mStopWorkers) {
+                    ByteBuffer buffer;
+                    try {
+                        buffer = mBufferPool.acquire();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    boolean endOfStream = false;
+                    try {
+                        synchronized (DownloadThread.this) {
+                            // Fill the buffer up to the next aligned offset. The end might
+                            // be moved by stealSegment(), which never splits closer than
+                            // MIN_SEGMENT_SIZE from the current position
+                            long position = mSegment.mPosition;
+                            buffer.limit((int) Math.min(
+                                    buffer.capacity() - position % buffer.capacity(),
+                                    mSegment.getRemaining()));
+                        }
+                        while (buffer.hasRemaining() && !mStopWorkers) {
+                            int count;
+                            setIdle(false);
+                            try {
+                                count = source.read(buffer);
+                            } finally {
+                                setIdle(true);
+                            }
+                            if (count < 0) {
+                                endOfStream = true;
+                                break;
+                            }
+                            mReceivedBytes += count;
+                            throttle(count);
+                        }
+                    } finally {
+                        // Keep what was received, even if the transfer failed
+                        submit(buffer);
+                    }
+                    synchronized (DownloadThread.this) {
+                        if (endOfStream) {
+                            if (mSegment.mEnd != Long.MAX_VALUE &&
+                                    mSegment.getRemaining() > 0) {
+                                throw new IOException("Unexpected end of stream");
+                            }
+                            mSegment.mEnd = mSegment.mPosition;
+                            return true;
+                        }
+                        if (mSegment.getRemaining() <= 0) {
+                            // The segment might have been shortened by stealSegment()
+                            return mSegment.mPosition == mResponseEnd;
+                        }
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Pay the bandwidth limiters for the received data, waiting before
+             * reading more if needed.
+             */
+            private void throttle(int count) throws IOException {
+                throttle(mBandwidthLimiter, count);
+                if (mScavengerController != null) {
+                    throttle(mScavengerLimiter, count);
+                }
+            }
+
+            private void throttle(BandwidthLimiter limiter, int count) throws IOException {
+                if (limiter == null) {
+                    return;
+                }
+                limiter.consume(count);
+                try {
+                    while (!limiter.await(LIMITER_WAIT_MS)) {
+                        if (mStopWorkers) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            private void abort() {
+                HttpURLConnection connection = mConnection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+
+            private void setIdle(boolean idle) {
+                long now = SystemClock.elapsedRealtime();
+                if (idle && mIdleSince == 0) {
+                    mIdleSince = now;
+                } else if (!idle && mIdleSince != 0) {
+                    mIdleMillis += now - mIdleSince;
+                    mIdleSince = 0;
+                }
+            }
+
+            /**
+             * Drop the connection if it received less than STALL_MIN_SPEED on average
+             * while reading for STALL_WINDOW_MS. Called by the DownloadThread.
+             */
+            private void checkStall(long millis) {
+                long idleSince = mIdleSince;
+                long idleMillis = mIdleMillis + (idleSince != 0 ? millis - idleSince : 0);
+                long bytes = mReceivedBytes;
+                // The window restarts as soon as enough was received in it
+                if (mWindowStart != 0 &&
+                        bytes - mWindowBytes < STALL_MIN_SPEED * STALL_WINDOW_MS / 1000) {
+                    long activeMillis = millis - mWindowStart - (idleMillis - mWindowIdleMillis);
+                    if (activeMillis < STALL_WINDOW_MS) {
+                        return;
+                    }
+                    HttpURLConnection connection = mConnection;
+                    if (connection != null) {
+                        Log.e(TAG, "Dropping a stalled connection, received " +
+                                (bytes - mWindowBytes) + " bytes in " + activeMillis + " ms");
+                        mStalled = true;
+                        // Makes the worker fail while reading
+                        connection.disconnect();
+                    }
+                }
+                mWindowStart = millis;
+                mWindowBytes = bytes;
+                mWindowIdleMillis = idleMillis;
+            }
+
+            /**
+             * Update the statistics with the outcome of an attempt.
+             *
+             * @param e the error that ended it, null if it succeeded
+             * @return the outcome
+             */
+            private String recordOutcome(IOException e) {
+                if (e == null) {
+                    return "completed";
+                } else if (mStopWorkers) {
+                    return "stopped";
+                } else if (mStalled) {
+                    mStalls.incrementAndGet();
+                    return "stalled";
+                } else if (e instanceof SocketTimeoutException) {
+                    mTimeouts.incrementAndGet();
+                    return "timed out";
+                }
+                mErrors.incrementAndGet();
+                return "failed";
+            }
+
+            /**
+             * Queue the content of the buffer to be written at the current position
+             * of the segment.
+             */
+            private void submit(ByteBuffer buffer) {
+                buffer.flip();
+                int count = buffer.remaining();
+                if (count == 0) {
+                    mBufferPool.release(buffer);
+                    return;
+                }
+                WriteRequest request;
+                synchronized (DownloadThread.this) {
+                    request = new WriteRequest(mSegment.mPosition, buffer);
+                    mPendingWrites.add(request);
+                    mSegment.mPosition += count;
+                }
+                mBytes += count;
+                // Never blocks, there's room for all the buffers
+                mWriteQueue.add(request);
+            }
+
+            /**
+             * Switch to the next source, or retry the current one, so that the
+             * segment continues from the last byte written.
+             */
+            private void failover(IOException e, int failures) {
+                if (mScoreboard != null) {
+                    mScoreboard.addFailure(mSource);
+                }
+                URL source = getNextSource(mSource);
+                long position;
+                synchronized (DownloadThread.this) {
+                    position = mSegment.mPosition;
+                }
+                mRetries.incrementAndGet();
+                long delay = getRetryDelay(failures);
+                Log.e(TAG, "Transfer from " + mSource + " failed at " + position +
+                        ", continuing from " + source + " in " + delay + " ms", e);
+                mSource = source;
+                try {
+                    mStopSignal.await(delay, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    // The workers aren't interrupted
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    mStartMillis = SystemClock.elapsedRealtime();
+                    int failures = 0;
+                    while (mSegment != null && !mStopWorkers) {
+                        long start = SystemClock.elapsedRealtime();
+                        long bytes = mBytes;
+                        IOException error = null;
+                        boolean complete = false;
+                        mStalled = false;
+                        mAttempts.incrementAndGet();
+                        try {
+                            if (mConnection == null) {
+                                mConnection = openConnectionWithFallback(mSegment);
+                            }
+                            try (InputStream inputStream = mConnection.getInputStream()) {
+                                complete = download(inputStream);
+                            }
+                        } catch (IOException e) {
+                            error = e;
+                        } finally {
+                            boolean connected = mConnection != null;
+                            if (connected) {
+                                mConnectionManager.release(mConnection, complete);
+                                mConnection = null;
+                            }
+                            long millis = SystemClock.elapsedRealtime() - start;
+                            String outcome = recordOutcome(error);
+                            Log.d(TAG, "Transfer from " + mSource.getAuthority() + " " +
+                                    outcome + " after " + (mBytes - bytes) + " bytes in " +
+                                    millis + " ms");
+                            if (mScoreboard != null) {
+                                mScoreboard.addThroughput(mSource, mBytes - bytes, millis);
+                                if (connected && !mStopWorkers) {
+                                    mScoreboard.addTransfer(mSource, mStalled);
+                                }
+                            }
+                        }
+                        if (error != null) {
+                            if (mBytes > bytes) {
+                                failures = 0;
+                            }
+                            if (mStopWorkers || !mCanFailover ||
+                                    ++failures > MAX_FAILOVER_ATTEMPTS ||
+                                    mRetries.get() >= MAX_RETRIES) {
+                                throw error;
+                            }
+                            failover(error, failures);
+                            continue;
+                        }
+                        if (!mStopWorkers) {
+                            nextSegment(this);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!mStopWorkers) {
+                        if (mScoreboard != null) {
+                            mScoreboard.addFailure(mSource);
+                        }
+                        mWorkerError = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the data received by the workers, so that they can keep reading
+         * from the network while the storage is busy.
+         */
+        private class DiskWriter extends Thread {
+            private final FileChannel mChannel;
+            private boolean mFailed;
+
+            private long mBytes;
+            private long mWrites;
+            private long mWriteMillis;
+            private long mUnflushedBytes;
+            private int mWritebacks;
+
+            private DiskWriter(FileChannel channel) {
+                mChannel = channel;
+            }
+
+            private void write(WriteRequest request) throws IOException {
+                ByteBuffer buffer = request.mBuffer;
+                int count = buffer.remaining();
+                long start = SystemClock.elapsedRealtime();
+                long position = request.mPosition;
+                int offset = buffer.position();
+                while (buffer.hasRemaining()) {
+                    position += mChannel.write(buffer, position);
+                }
+                buffer.position(offset);
+                digestWrittenBlock(request.mPosition, buffer);
+                mUnflushedBytes += count;
+                // Durability.STRICT flushes after every write anyway
+                if (mUnflushedBytes >= WRITEBACK_INTERVAL_BYTES &&
+                        mDurability != DownloadClient.Durability.STRICT) {
+                    mChannel.force(false);
+                    mUnflushedBytes = 0;
+                    mWritebacks++;
+                }
+                mWriteMillis += SystemClock.elapsedRealtime() - start;
+                mWrites++;
+                mBytes += count;
+                mTotalBytesRead.addAndGet(count);
+            }
+
+            @Override
+            public void run() {
+                for (;;) {
+                    WriteRequest request;
+                    try {
+                        request = mWriteQueue.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (request == WriteRequest.END) {
+                        return;
+                    }
+                    boolean written = false;
+                    try {
+                        // After a failure, keep releasing the buffers or the workers
+                        // would wait for them forever
+                        if (!mFailed) {
+                            write(request);
+                            written = true;
+                        }
+                    } catch (IOException e) {
+                        mFailed = true;
+                        mWorkerError = e;
+                    } finally {
+                        if (written) {
+                            synchronized (DownloadThread.this) {
+                                mPendingWrites.remove(request);
+                            }
+                        }
+                        mBufferPool.release(request.mBuffer);
+                    }
+                    if (written && mDurability == DownloadClient.Durability.STRICT) {
+                        try {
+                            checkpoint(mChannel);
+                        } catch (IOException e) {
+                            mFailed = true;
+                            mWorkerError = e;
+                        }
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of how well the mirrors performed in the past, so that the
+ * download can start from the one that is expected to complete first rather
+ * than relying only on the priority advertised by the server.
+ */
+public class MirrorScoreboard {
+
+    private static final String TAG = "MirrorScoreboard";
+
+    // Samples lose half of their weight every week
+    private static final long HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+    // Samples whose weight dropped below this are forgotten
+    private static final double MIN_WEIGHT = 0.05;
+
+    // Size used to compare the expected completion times
+    private static final long REFERENCE_SIZE = 512 * 1024 * 1024;
+    // Transfers shorter than this say little about the throughput
+    private static final long MIN_THROUGHPUT_SAMPLE_SIZE = 1024 * 1024;
+
+    private static final int PROBE_SIZE = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private boolean mLoaded;
+
+    /**
+     * Average in which samples lose weight over time
+     */
+    private static class DecayingAverage {
+        private double mValue;
+        private double mWeight;
+        private long mUpdated;
+
+        private void decay(long now) {
+            if (mUpdated > 0 && now > mUpdated) {
+                mWeight *= Math.pow(0.5, (now - mUpdated) / (double) HALF_LIFE_MS);
+            }
+            mUpdated = now;
+        }
+
+        private void add(double sample, long now) {
+            decay(now);
+            mValue = (mValue * mWeight + sample) / (mWeight + 1);
+            mWeight += 1;
+        }
+
+        private boolean isKnown() {
+            return mWeight >= MIN_WEIGHT;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("value", mValue);
+            object.put("weight", mWeight);
+            object.put("updated", mUpdated);
+            return object;
+        }
+
+        private void fromJson(JSONObject object) {
+            if (object != null) {
+                mValue = object.optDouble("value", 0);
+                mWeight = object.optDouble("weight", 0);
+                mUpdated = object.optLong("updated", 0);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final DecayingAverage mConnectMillis = new DecayingAverage();
+        private final DecayingAverage mFirstByteMillis = new DecayingAverage();
+        private final DecayingAverage mThroughput = new DecayingAverage();
+        private final DecayingAverage mFailureRate = new DecayingAverage();
+        private final DecayingAverage mStallRate = new DecayingAverage();
+
+        private boolean isKnown(long now) {
+            mThroughput.decay(now);
+            mFailureRate.decay(now);
+            mStallRate.decay(now);
+            return mThroughput.isKnown() || mFailureRate.isKnown() || mStallRate.isKnown();
+        }
+    }
+
+    public MirrorScoreboard(File file) {
+        mFile = file;
+    }
+
+    private static String getKey(URL url) {
+        return url.getAuthority();
+    }
+
+    private Entry getEntry(URL url) {
+        ensureLoaded();
+        String key = getKey(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    synchronized void addConnection(URL url, long connectMillis, long firstByteMillis) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(url);
+        entry.mConnectMillis.add(connectMillis, now);
+        entry.mFirstByteMillis.add(firstByteMillis, now);
+        entry.mFailureRate.add(0, now);
+    }
+
+    synchronized void addThroughput(URL url, long bytes, long millis) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_SIZE || millis <= 0) {
+            return;
+        }
+        getEntry(url).mThroughput.add(bytes * 1000.0 / millis, System.currentTimeMillis());
+    }
+
+    synchronized void addFailure(URL url) {
+        getEntry(url).mFailureRate.add(1, System.currentTimeMillis());
+    }
+
+    /**
+     * Record the end of a transfer that got a response from the mirror.
+     *
+     * @param stalled whether it was dropped because it stopped receiving data
+     */
+    synchronized void addTransfer(URL url, boolean stalled) {
+        getEntry(url).mStallRate.add(stalled ? 1 : 0, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the fraction of the transfers from the given mirror that stalled,
+     * or -1 if unknown
+     */
+    synchronized double getStallRate(URL url) {
+        Entry entry = getEntry(url);
+        entry.isKnown(System.currentTimeMillis());
+        return entry.mStallRate.isKnown() ? entry.mStallRate.mValue : -1;
+    }
+
+    /**
+     * @return the time in milliseconds a download of REFERENCE_SIZE bytes is
+     * expected to take from the given mirror, or Long.MAX_VALUE if unknown
+     */
+    synchronized long getExpectedTime(URL url) {
+        Entry entry = getEntry(url);
+        entry.isKnown(System.currentTimeMillis());
+        if (!entry.mThroughput.isKnown() || entry.mThroughput.mValue <= 0) {
+            return Long.MAX_VALUE;
+        }
+        double time = entry.mConnectMillis.mValue + entry.mFirstByteMillis.mValue +
+                REFERENCE_SIZE * 1000.0 / entry.mThroughput.mValue;
+        // Account for the time wasted by attempts that are going to fail
+        double failureRate = entry.mFailureRate.isKnown() ?
+                Math.min(entry.mFailureRate.mValue, 0.9) : 0;
+        return (long) (time / (1 - failureRate));
+    }
+
+    /**
+     * Fetch a small range of the file from each of the given mirrors, so that
+     * mirrors we know nothing about can be ranked too.
+     */
+    void probe(List<URL> urls) {
+        List<Thread> threads = new ArrayList<>();
+        for (URL url : urls) {
+            Thread thread = new Thread(() -> probe(url));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(PROBE_TIMEOUT_MS * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void probe(URL url) {
+        ConnectionManager manager = ConnectionManager.getInstance();
+        HttpURLConnection connection = null;
+        boolean complete = false;
+        try {
+            // Once read, the connection can be reused by the download
+            connection = manager.open(url);
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+            long start = SystemClock.elapsedRealtime();
+            manager.connect(connection);
+            long connected = SystemClock.elapsedRealtime();
+            int responseCode = connection.getResponseCode();
+            long firstByte = SystemClock.elapsedRealtime();
+            if (responseCode != 206) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            long bytes = 0;
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] b = new byte[8192];
+                int count;
+                while ((count = inputStream.read(b)) > 0) {
+                    bytes += count;
+                }
+                complete = count < 0;
+            }
+            long end = SystemClock.elapsedRealtime();
+            addConnection(url, connected - start, firstByte - connected);
+            synchronized (this) {
+                // The probe is too short to be a proper throughput sample, only use it
+                // if we don't have anything better
+                Entry entry = getEntry(url);
+                if (!entry.mThroughput.isKnown() && end > firstByte) {
+                    entry.mThroughput.add(bytes * 1000.0 / (end - firstByte),
+                            System.currentTimeMillis());
+                }
+            }
+            Log.d(TAG, "Probed " + url.getAuthority() + " in " + (end - start) + "ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not probe " + url.getAuthority(), e);
+            addFailure(url);
+        } finally {
+            if (connection != null) {
+                manager.release(connection, complete);
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(mFile))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                json.append(line);
+            }
+            JSONObject object = new JSONObject(json.toString());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject entryObject = object.getJSONObject(key);
+                Entry entry = new Entry();
+                entry.mConnectMillis.fromJson(entryObject.optJSONObject("connect"));
+                entry.mFirstByteMillis.fromJson(entryObject.optJSONObject("first_byte"));
+                entry.mThroughput.fromJson(entryObject.optJSONObject("throughput"));
+                entry.mFailureRate.fromJson(entryObject.optJSONObject("failure_rate"));
+                entry.mStallRate.fromJson(entryObject.optJSONObject("stall_rate"));
+                mEntries.put(key, entry);
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read " + mFile, e);
+        }
+    }
+
+    public synchronized void save() {
+        if (!mLoaded) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (!entry.isKnown(now)) {
+                    continue;
+                }
+                JSONObject entryObject = new JSONObject();
+                entryObject.put("connect", entry.mConnectMillis.toJson());
+                entryObject.put("first_byte", entry.mFirstByteMillis.toJson());
+                entryObject.put("throughput", entry.mThroughput.toJson());
+                entryObject.put("failure_rate", entry.mFailureRate.toJson());
+                entryObject.put("stall_rate", entry.mStallRate.toJson());
+                object.put(mapEntry.getKey(), entryObject);
+            }
+            File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+            try (FileWriter writer = new FileWriter(tmp)) {
+                writer.write(object.toString());
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not save " + mFile, e);
+        }
+    }
+}
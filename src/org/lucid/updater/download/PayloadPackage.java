@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.util.Log;
+
+import org.lucid.updater.misc.Constants;
+import org.lucid.updater.misc.ZipIndex;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * The parts of an A/B package needed to install it, payload.bin and
+ * payload_properties.txt, stored in a zip file of their own. The payload is
+ * downloaded with its local header as it is on the server, the rest of the
+ * file is written once the download completes. The result can be installed
+ * like the complete package.
+ */
+public class PayloadPackage {
+
+    private static final String TAG = "PayloadPackage";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+
+    // The CRC and the sizes follow the data instead of being in the local header
+    private static final short DATA_DESCRIPTOR_FLAG = 0x08;
+
+    // 1980-01-01, the earliest date that can be stored
+    private static final short DOS_DATE = 0x21;
+
+    // Leave room for the rest of the file, zip64 isn't supported
+    private static final long MAX_LENGTH = 0xffffffffL - 1024 * 1024;
+
+    private final long mOffset;
+    private final byte[] mPayloadHeader;
+    private final long mPayloadSize;
+    private final long mPayloadCrc;
+    private final byte[] mProperties;
+
+    private PayloadPackage(long offset, byte[] payloadHeader, long payloadSize, long payloadCrc,
+            byte[] properties) {
+        mOffset = offset;
+        mPayloadHeader = payloadHeader;
+        mPayloadSize = payloadSize;
+        mPayloadCrc = payloadCrc;
+        mProperties = properties;
+    }
+
+    /**
+     * Get the local header of the payload and the properties from the server.
+     *
+     * @throws ZipException if the file isn't an A/B package
+     * @throws IOException if the payload can't be downloaded on its own
+     */
+    public static PayloadPackage read(RemoteZipFile zipFile) throws IOException {
+        RemoteZipFile.Entry payload = zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+        RemoteZipFile.Entry properties = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        if (payload == null || properties == null) {
+            throw new ZipException("Not an A/B update");
+        }
+        if (payload.getMethod() != ZipEntry.STORED) {
+            throw new ZipException("The payload is compressed");
+        }
+        long headerOffset = payload.getLocalHeaderOffset();
+        int headerLength = (int) (zipFile.getDataOffset(payload) - headerOffset);
+        if (headerLength + payload.getSize() > MAX_LENGTH) {
+            throw new IOException("The payload is too big");
+        }
+        ByteBuffer header = zipFile.read(headerOffset, headerLength);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (InputStream is = zipFile.getInputStream(properties)) {
+            byte[] buffer = new byte[4096];
+            for (int count; (count = is.read(buffer)) > 0; ) {
+                os.write(buffer, 0, count);
+            }
+        }
+        return new PayloadPackage(headerOffset, header.array(), payload.getSize(),
+                payload.getCrc(), os.toByteArray());
+    }
+
+    /**
+     * @return the offset of the part of the package to download
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return the length of the part of the package to download
+     */
+    public long getLength() {
+        return mPayloadHeader.length + mPayloadSize;
+    }
+
+    /**
+     * Complete the downloaded payload with the properties and the central
+     * directory. Anything after the payload is replaced.
+     */
+    public void writeTrailer(File file) throws IOException {
+        byte[] payloadName = Constants.AB_PAYLOAD_BIN_PATH.getBytes(StandardCharsets.UTF_8);
+        byte[] propertiesName =
+                Constants.AB_PAYLOAD_PROPERTIES_PATH.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payloadHeader = ByteBuffer.wrap(mPayloadHeader.clone())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int payloadExtraLength = mPayloadHeader.length - LOCAL_HEADER_SIZE - payloadName.length;
+        if (payloadHeader.getInt(0) != LOCAL_HEADER_SIGNATURE || payloadExtraLength < 0) {
+            throw new ZipException("Invalid local header");
+        }
+        // The data descriptor isn't downloaded, so its content goes in the header
+        boolean hasDataDescriptor = (payloadHeader.getShort(6) & DATA_DESCRIPTOR_FLAG) != 0;
+        if (hasDataDescriptor) {
+            payloadHeader.putShort(6, (short) (payloadHeader.getShort(6) & ~DATA_DESCRIPTOR_FLAG));
+            payloadHeader.putInt(14, (int) mPayloadCrc);
+            payloadHeader.putInt(18, (int) mPayloadSize);
+            payloadHeader.putInt(22, (int) mPayloadSize);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(mProperties);
+
+        long propertiesOffset = getLength();
+        long directoryOffset = propertiesOffset + LOCAL_HEADER_SIZE + propertiesName.length +
+                mProperties.length;
+        int directorySize = CENTRAL_HEADER_SIZE * 2 + payloadName.length +
+                payloadExtraLength + propertiesName.length;
+        ByteBuffer trailer = ByteBuffer.allocate((int) (directoryOffset - propertiesOffset) +
+                directorySize + EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // payload_properties.txt
+        trailer.putInt(LOCAL_HEADER_SIGNATURE);
+        trailer.putShort((short) 10);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) ZipEntry.STORED);
+        trailer.putShort((short) 0);
+        trailer.putShort(DOS_DATE);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt(mProperties.length);
+        trailer.putInt(mProperties.length);
+        trailer.putShort((short) propertiesName.length);
+        trailer.putShort((short) 0);
+        trailer.put(propertiesName);
+        trailer.put(mProperties);
+
+        // Central directory, the payload keeps the fields of its local header
+        trailer.putInt(CENTRAL_HEADER_SIGNATURE);
+        trailer.putShort((short) 20);
+        trailer.putShort(payloadHeader.getShort(4));
+        trailer.putShort(payloadHeader.getShort(6));
+        trailer.putShort((short) ZipEntry.STORED);
+        trailer.putShort(payloadHeader.getShort(10));
+        trailer.putShort(payloadHeader.getShort(12));
+        trailer.putInt((int) mPayloadCrc);
+        trailer.putInt((int) mPayloadSize);
+        trailer.putInt((int) mPayloadSize);
+        trailer.putShort((short) payloadName.length);
+        trailer.putShort((short) payloadExtraLength);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putInt(0);
+        trailer.putInt(0);
+        trailer.put(payloadName);
+        trailer.put(mPayloadHeader, LOCAL_HEADER_SIZE + payloadName.length, payloadExtraLength);
+
+        trailer.putInt(CENTRAL_HEADER_SIGNATURE);
+        trailer.putShort((short) 20);
+        trailer.putShort((short) 10);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) ZipEntry.STORED);
+        trailer.putShort((short) 0);
+        trailer.putShort(DOS_DATE);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt(mProperties.length);
+        trailer.putInt(mProperties.length);
+        trailer.putShort((short) propertiesName.length);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putInt(0);
+        trailer.putInt((int) propertiesOffset);
+        trailer.put(propertiesName);
+
+        trailer.putInt(EOCD_SIGNATURE);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 0);
+        trailer.putShort((short) 2);
+        trailer.putShort((short) 2);
+        trailer.putInt(directorySize);
+        trailer.putInt((int) directoryOffset);
+        trailer.putShort((short) 0);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < propertiesOffset) {
+                throw new IOException("The payload is incomplete");
+            }
+            raf.setLength(propertiesOffset);
+            if (hasDataDescriptor) {
+                raf.seek(0);
+                raf.write(payloadHeader.array(), 0, LOCAL_HEADER_SIZE);
+            }
+            raf.seek(propertiesOffset);
+            raf.write(trailer.array());
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * @return true if the rest of the file was already written after the payload
+     */
+    public boolean isTrailerWritten(File file) {
+        return file.length() > getLength();
+    }
+
+    /**
+     * Compare the payload with the size and the digest given by the properties.
+     * This only detects corrupted downloads, the signature of the payload is
+     * verified by update_engine.
+     */
+    public static boolean verify(File file) {
+        try {
+            ZipIndex zipIndex = ZipIndex.get(file);
+            ZipIndex.Entry payload = zipIndex.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            ZipIndex.Entry properties = zipIndex.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            if (payload == null || properties == null) {
+                Log.e(TAG, file + " is not an A/B update");
+                return false;
+            }
+            String fileHash = null;
+            long fileSize = -1;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                    zipIndex.getInputStream(properties), StandardCharsets.UTF_8))) {
+                for (String line; (line = br.readLine()) != null; ) {
+                    if (line.startsWith("FILE_HASH=")) {
+                        fileHash = line.substring(10).trim();
+                    } else if (line.startsWith("FILE_SIZE=")) {
+                        fileSize = Long.parseLong(line.substring(10).trim());
+                    }
+                }
+            }
+            if (fileHash == null || fileSize != payload.getSize()) {
+                Log.e(TAG, "The payload doesn't match its properties");
+                return false;
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream is = zipIndex.getInputStream(payload)) {
+                byte[] buffer = new byte[1024 * 1024];
+                for (int count; (count = is.read(buffer)) > 0; ) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            if (!Base64.getEncoder().encodeToString(digest.digest()).equals(fileHash)) {
+                Log.e(TAG, "The payload is corrupted");
+                return false;
+            }
+            return true;
+        } catch (IOException | NumberFormatException | NoSuchAlgorithmException e) {
+            Log.e(TAG, "Could not verify " + file, e);
+            return false;
+        }
+    }
+}
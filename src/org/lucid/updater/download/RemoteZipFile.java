@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file on a server that supports range requests. Only the central
+ * directory is downloaded when opening it, the entries are fetched on demand.
+ */
+public class RemoteZipFile {
+
+    private static final String TAG = "RemoteZipFile";
+
+    private static final int TIMEOUT_MS = 15000;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+
+    private URL mUrl;
+    private long mLength = -1;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return ZipEntry.STORED or ZipEntry.DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private RemoteZipFile(URL url) {
+        mUrl = url;
+    }
+
+    /**
+     * Download and parse the central directory of the given zip file.
+     *
+     * @throws ZipException if the file isn't a valid zip file
+     * @throws IOException if the server doesn't support range requests
+     */
+    public static RemoteZipFile open(String url) throws IOException {
+        RemoteZipFile zipFile = new RemoteZipFile(new URL(url));
+        zipFile.readCentralDirectory();
+        return zipFile;
+    }
+
+    /**
+     * @return the URL of the file after following the redirects
+     */
+    public String getUrl() {
+        return mUrl.toString();
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return the offset of the data of the given entry from the beginning of
+     * the file. The local header of the entry is downloaded the first time.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + entry.mName);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            entry.mDataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE +
+                    nameLength + extraLength;
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * @return a stream with the uncompressed content of the given entry
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        if (entry.mMethod != ZipEntry.STORED && entry.mMethod != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+        long offset = getDataOffset(entry);
+        InputStream is = openRange(offset, entry.mCompressedSize).getInputStream();
+        return entry.mMethod == ZipEntry.STORED ? is :
+                new InflaterInputStream(is, new Inflater(true));
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of
+        // unknown length, get the longest possible tail of the file
+        int tailSize = ZIP64_LOCATOR_SIZE + EOCD_SIZE + MAX_COMMENT_SIZE;
+        HttpURLConnection connection = openConnection("bytes=-" + tailSize);
+        ByteBuffer tail;
+        try (InputStream is = connection.getInputStream()) {
+            tail = readFully(is, tailSize);
+        }
+        ConnectionManager.getInstance().release(connection, true);
+        mLength = HttpURLConnectionClient.getCompleteLength(connection);
+        if (mLength < tail.limit()) {
+            throw new IOException("Could not get the length of " + mUrl);
+        }
+        long tailOffset = mLength - tail.limit();
+
+        int eocd = findEndOfCentralDirectory(tail);
+        if (eocd < 0) {
+            throw new ZipException("Not a zip file");
+        }
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directorySize == 0xffffffffL ||
+                directoryOffset == 0xffffffffL) {
+            int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("Missing zip64 end of central directory locator");
+            }
+            ByteBuffer zip64Eocd = read(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Invalid zip64 end of central directory");
+            }
+            entryCount = zip64Eocd.getLong(32);
+            directorySize = zip64Eocd.getLong(40);
+            directoryOffset = zip64Eocd.getLong(48);
+        }
+        if (directorySize > MAX_CENTRAL_DIRECTORY_SIZE ||
+                directoryOffset + directorySize > mLength) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ByteBuffer directory;
+        if (directoryOffset >= tailOffset) {
+            // Small files fit entirely in the tail
+            tail.position((int) (directoryOffset - tailOffset));
+            tail.limit(tail.position() + (int) directorySize);
+            directory = tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            directory = read(directoryOffset, (int) directorySize);
+        }
+        parseCentralDirectory(directory, entryCount);
+        checkEntries(directoryOffset);
+        Log.d(TAG, "Read " + mEntries.size() + " entries from " + mUrl);
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void parseCentralDirectory(ByteBuffer directory, long entryCount)
+            throws IOException {
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.limit() ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long crc = directory.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long size = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+            int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > directory.limit()) {
+                throw new ZipException("Truncated central directory");
+            }
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+
+            // The fields that don't fit in 32 bits are in the zip64 extra field,
+            // in this order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int length = directory.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    if (size == 0xffffffffL && field + 8 <= extraEnd) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && field + 8 <= extraEnd) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), method, crc,
+                    compressedSize, size, localHeaderOffset);
+            if (localHeaderOffset + LOCAL_HEADER_SIZE + compressedSize > mLength) {
+                throw new ZipException("Invalid entry " + entry.mName);
+            }
+            mEntries.put(entry.mName, entry);
+            position = next;
+        }
+    }
+
+    /**
+     * Make sure that the entries don't overlap and that they are all before the
+     * central directory, so that a truncated or corrupted file is rejected
+     * before downloading it.
+     */
+    private void checkEntries(long directoryOffset) throws ZipException {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries,
+                (a, b) -> Long.compare(a.mLocalHeaderOffset, b.mLocalHeaderOffset));
+        long end = 0;
+        for (Entry entry : entries) {
+            if (entry.mLocalHeaderOffset < end) {
+                throw new ZipException("Overlapping entry " + entry.mName);
+            }
+            // The name in the local header is the same, the extra field can differ
+            end = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE +
+                    entry.mName.getBytes(StandardCharsets.UTF_8).length +
+                    entry.mCompressedSize;
+        }
+        if (end > directoryOffset) {
+            throw new ZipException("The last entry overlaps the central directory");
+        }
+    }
+
+    /**
+     * @return the given part of the file
+     */
+    public ByteBuffer read(long offset, int length) throws IOException {
+        HttpURLConnection connection = openRange(offset, length);
+        boolean complete = false;
+        try (InputStream is = connection.getInputStream()) {
+            ByteBuffer buffer = readFully(is, length);
+            if (buffer.limit() != length) {
+                throw new IOException("Unexpected end of stream");
+            }
+            complete = true;
+            return buffer;
+        } finally {
+            ConnectionManager.getInstance().release(connection, complete);
+        }
+    }
+
+    private HttpURLConnection openRange(long offset, long length) throws IOException {
+        return openConnection("bytes=" + offset + "-" + (offset + length - 1));
+    }
+
+    private HttpURLConnection openConnection(String range) throws IOException {
+        ConnectionManager manager = ConnectionManager.getInstance();
+        HttpURLConnection connection = manager.open(mUrl);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Range", range);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        manager.connect(connection);
+        int responseCode = connection.getResponseCode();
+        if (responseCode != 206) {
+            manager.release(connection, false);
+            throw new IOException("Range requests not supported, got " + responseCode);
+        }
+        // Don't follow the redirects again for the next requests
+        mUrl = connection.getURL();
+        return connection;
+    }
+
+    private static ByteBuffer readFully(InputStream is, int maxLength) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(Math.min(maxLength, 8192));
+        byte[] buffer = new byte[8192];
+        int count;
+        while (os.size() < maxLength &&
+                (count = is.read(buffer, 0, Math.min(buffer.length, maxLength - os.size()))) > 0) {
+            os.write(buffer, 0, count);
+        }
+        return ByteBuffer.wrap(os.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
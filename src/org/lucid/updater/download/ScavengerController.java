@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Adjusts the speed of a download so that it only uses the bandwidth left
+ * unused by the other traffic, following LEDBAT (RFC 6817). The TCP round-trip
+ * time isn't available here, so the delay is sampled by requesting a single
+ * byte from the server: the request waits in the same queues as the download,
+ * which grow when other apps use the network. The download slows down as the
+ * queuing delay approaches the target, and speeds up again when it drops.
+ */
+class ScavengerController {
+
+    private static final String TAG = "ScavengerController";
+
+    // Queuing delay the download is allowed to add
+    private static final long TARGET_DELAY_MS = 100;
+    // Largest relative increase of the speed per sample
+    private static final double GAIN = 0.5;
+    // Smallest factor the speed is multiplied by per sample
+    private static final double MAX_DECREASE = 0.5;
+
+    // The download must keep making progress, however slowly
+    private static final long MIN_RATE = 32 * 1024;
+    private static final long INITIAL_RATE = 256 * 1024;
+
+    private static final int PROBE_INTERVAL_MS = 500;
+    private static final int PROBE_TIMEOUT_MS = 10000;
+
+    // The current delay is the lowest of the last samples, to filter out noise
+    private static final int CURRENT_DELAY_SAMPLES = 2;
+    // The base delay is the lowest of the last minutes, to follow route changes
+    private static final int BASE_DELAY_MINUTES = 10;
+    private static final long MINUTE_MS = 60000;
+
+    private final URL mUrl;
+    private final BandwidthLimiter mLimiter;
+
+    private final long[] mCurrentDelays = new long[CURRENT_DELAY_SAMPLES];
+    private int mCurrentDelayCount;
+    private final long[] mBaseDelays = new long[BASE_DELAY_MINUTES];
+    private int mBaseDelayCount;
+    private long mBaseDelayMinuteStart;
+
+    private long mRate = INITIAL_RATE;
+    private long mLastSampleMillis;
+    private long mLastConsumedBytes;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    /**
+     * @param url the server to sample the delay of, must support range requests
+     * @param limiter the limiter of the download, controlled from now on
+     */
+    ScavengerController(URL url, BandwidthLimiter limiter) {
+        mUrl = url;
+        mLimiter = limiter;
+    }
+
+    void start() {
+        mLimiter.setRate(mRate);
+        mLastSampleMillis = SystemClock.elapsedRealtime();
+        mLastConsumedBytes = mLimiter.getConsumedBytes();
+        mThread = new Thread(this::run, TAG);
+        mThread.start();
+    }
+
+    void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    private void run() {
+        Log.d(TAG, "Sampling the delay of " + mUrl.getHost());
+        while (!mStopped) {
+            try {
+                long delay = probe();
+                long now = SystemClock.elapsedRealtime();
+                long consumedBytes = mLimiter.getConsumedBytes();
+                long throughput = (consumedBytes - mLastConsumedBytes) * 1000 /
+                        Math.max(now - mLastSampleMillis, 1);
+                mLastSampleMillis = now;
+                mLastConsumedBytes = consumedBytes;
+                mLimiter.setRate(onDelaySample(delay, now, throughput));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sample the delay", e);
+            }
+            try {
+                Thread.sleep(PROBE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return how long it took to get a byte from the server
+     */
+    private long probe() throws IOException {
+        ConnectionManager manager = ConnectionManager.getInstance();
+        HttpURLConnection connection = manager.open(mUrl);
+        connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+        connection.setReadTimeout(PROBE_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Range", "bytes=0-0");
+        long start = SystemClock.elapsedRealtime();
+        manager.connect(connection);
+        int responseCode = connection.getResponseCode();
+        long delay = SystemClock.elapsedRealtime() - start;
+        if (responseCode != 206) {
+            manager.release(connection, false);
+            throw new IOException("Range requests not supported, got " + responseCode);
+        }
+        // Read the whole response so that the connection is reused next time
+        boolean complete = false;
+        try (InputStream is = connection.getInputStream()) {
+            byte[] buffer = new byte[16];
+            while (is.read(buffer) >= 0) {
+                // Discard
+            }
+            complete = true;
+        } finally {
+            manager.release(connection, complete);
+        }
+        return delay;
+    }
+
+    /**
+     * Update the speed with a new delay sample.
+     *
+     * @param throughput the speed of the download since the last sample
+     * @return the new speed in bytes per second
+     */
+    long onDelaySample(long delay, long now, long throughput) {
+        updateBaseDelay(delay, now);
+        mCurrentDelays[mCurrentDelayCount++ % CURRENT_DELAY_SAMPLES] = delay;
+        long currentDelay = min(mCurrentDelays,
+                Math.min(mCurrentDelayCount, CURRENT_DELAY_SAMPLES));
+        long queuingDelay = currentDelay - min(mBaseDelays, mBaseDelayCount);
+
+        double offTarget = (TARGET_DELAY_MS - queuingDelay) / (double) TARGET_DELAY_MS;
+        double factor = Math.max(MAX_DECREASE, Math.min(1 + GAIN, 1 + GAIN * offTarget));
+        long rate = (long) (mRate * factor);
+        if (factor > 1 && throughput > 0) {
+            // Don't increase the limit far beyond what the download gets, it
+            // would take a while to bring it back down when the delay rises
+            rate = Math.min(rate, Math.max(mRate, (long) (throughput * (1 + GAIN))));
+        }
+        mRate = Math.max(rate, MIN_RATE);
+        return mRate;
+    }
+
+    private void updateBaseDelay(long delay, long now) {
+        if (mBaseDelayCount == 0 || now - mBaseDelayMinuteStart >= MINUTE_MS) {
+            // Start a new minute, forgetting the oldest one
+            if (mBaseDelayCount == BASE_DELAY_MINUTES) {
+                System.arraycopy(mBaseDelays, 1, mBaseDelays, 0, BASE_DELAY_MINUTES - 1);
+                mBaseDelayCount--;
+            }
+            mBaseDelays[mBaseDelayCount++] = delay;
+            mBaseDelayMinuteStart = now;
+        } else {
+            mBaseDelays[mBaseDelayCount - 1] = Math.min(mBaseDelays[mBaseDelayCount - 1], delay);
+        }
+    }
+
+    private static long min(long[] values, int count) {
+        return Arrays.stream(values, 0, count).min().orElse(0);
+    }
+}
@@ -28,16 +28,29 @@ public final class Constants {
     public static final int AUTO_UPDATES_CHECK_INTERVAL_WEEKLY = 2;
     public static final int AUTO_UPDATES_CHECK_INTERVAL_MONTHLY = 3;
 
+    public static final int BANDWIDTH_LIMIT_NONE = 0;
+    public static final int BANDWIDTH_LIMIT_HIGH = 1;
+    public static final int BANDWIDTH_LIMIT_MEDIUM = 2;
+    public static final int BANDWIDTH_LIMIT_LOW = 3;
+
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
+    public static final String PREF_AB_STREAMING = "ab_streaming";
+    public static final String PREF_AB_PAYLOAD_ONLY = "ab_payload_only";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
+    public static final String PREF_BANDWIDTH_LIMIT = "bandwidth_limit";
+    public static final String PREF_BANDWIDTH_SCHEDULE = "bandwidth_schedule";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_ACCENT_COLOR = "pref_accent_color_updater";
     public static final String PREF_DARK_MODE = "pref_dark_mode_toggle";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
+    public static final String DOWNLOAD_JOURNAL_EXT = ".journal";
+
+    public static final int DOWNLOAD_SEGMENTS_WIFI = 4;
+    public static final int DOWNLOAD_SEGMENTS_MOBILE = 2;
 
     public static final String PROP_AB_DEVICE = "ro.build.ab_update";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
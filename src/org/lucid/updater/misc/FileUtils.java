@@ -21,68 +21,72 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    // Copy in chunks this large, to report the progress and be able to stop. A
+    // package of 1-3GB moves about 1% per chunk, and a chunk takes a fraction of
+    // a second at the speed of the storage, while the cost of each call is
+    // negligible next to that.
+    private static final long COPY_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int COMPARE_BUFFER_SIZE = 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
 
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private ProgressCallBack mCallback;
-        private long mSize;
-        private ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
-
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
-        }
-
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
-        }
-
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
-                }
-            }
-            return read;
-        }
-    }
-
-    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
-            throws IOException {
+    /**
+     * Copy a file in chunks, letting the kernel move the data directly between the
+     * files. The copy stops between two chunks if the thread is interrupted, in
+     * which case the destination is deleted and the interrupted flag stays set.
+     *
+     * @param verify whether to compare the copy with the source once done. This reads
+     *               both files again, so it's off unless requested
+     */
+    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack,
+            boolean verify) throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            long size = sourceChannel.size();
+            long position = 0;
+            int progress = -1;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.d(TAG, "Copy interrupted");
+                    destFile.delete();
+                    return;
+                }
+                long count = sourceChannel.transferTo(position,
+                        Math.min(COPY_CHUNK_SIZE, size - position), destChannel);
+                if (count <= 0) {
+                    throw new IOException("Could not copy " + sourceFile + " at " + position);
+                }
+                position += count;
+                // Write each chunk back before the next one, otherwise a whole package
+                // of dirty pages builds up and can't be reclaimed until it's flushed
+                destChannel.force(false);
+                int newProgress = Math.round(position * 100.f / size);
+                if (progressCallBack != null && newProgress != progress) {
+                    progressCallBack.update(newProgress);
+                    progress = newProgress;
+                }
             }
+            if (verify) {
+                try (FileChannel copyChannel = new FileInputStream(destFile).getChannel()) {
+                    if (!contentEquals(sourceChannel, copyChannel)) {
+                        throw new IOException(destFile + " doesn't match " + sourceFile);
+                    }
+                }
+            }
+        } catch (ClosedByInterruptException | InterruptedIOException e) {
+            Log.d(TAG, "Copy interrupted");
+            destFile.delete();
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
             if (destFile.exists()) {
@@ -92,7 +96,48 @@ public class FileUtils {
         }
     }
 
+    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
+            throws IOException {
+        copyFile(sourceFile, destFile, progressCallBack, false);
+    }
+
     public static void copyFile(File sourceFile, File destFile) throws IOException {
-        copyFile(sourceFile, destFile, null);
+        copyFile(sourceFile, destFile, null, false);
+    }
+
+    private static boolean contentEquals(FileChannel first, FileChannel second)
+            throws IOException {
+        long size = first.size();
+        if (second.size() != size) {
+            return false;
+        }
+        ByteBuffer firstBuffer = ByteBuffer.allocateDirect(COMPARE_BUFFER_SIZE);
+        ByteBuffer secondBuffer = ByteBuffer.allocateDirect(COMPARE_BUFFER_SIZE);
+        for (long position = 0; position < size; ) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+            int count = (int) Math.min(COMPARE_BUFFER_SIZE, size - position);
+            if (!readFully(first, firstBuffer, position, count) ||
+                    !readFully(second, secondBuffer, position, count) ||
+                    !firstBuffer.equals(secondBuffer)) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position,
+            int count) throws IOException {
+        buffer.clear();
+        buffer.limit(count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
     }
 }
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.misc;
+
+import org.lucid.updater.download.RemoteZipFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The header and the manifest of an A/B payload, the part update_engine reads
+ * before writing anything. Only the header and the manifest are read, the
+ * operations are checked against the size of the payload and the partitions
+ * without looking at their data.
+ */
+public class PayloadManifest {
+
+    private static final byte[] MAGIC = {'C', 'r', 'A', 'U'};
+    private static final int HEADER_SIZE_V1 = 20;
+    private static final int HEADER_SIZE_V2 = 24;
+
+    private static final long MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+    private static final long SPARSE_HOLE = -1;
+
+    // Conservative write speed of the inactive slot, operations that decompress
+    // or patch data are slower than plain writes
+    private static final long ESTIMATED_WRITE_BYTES_PER_SECOND = 30 * 1024 * 1024;
+
+    // Fields of DeltaArchiveManifest in update_metadata.proto
+    private static final int MANIFEST_BLOCK_SIZE = 3;
+    private static final int MANIFEST_SIGNATURES_OFFSET = 4;
+    private static final int MANIFEST_SIGNATURES_SIZE = 5;
+    private static final int MANIFEST_MINOR_VERSION = 12;
+    private static final int MANIFEST_PARTITIONS = 13;
+    private static final int MANIFEST_MAX_TIMESTAMP = 14;
+
+    // Fields of PartitionUpdate
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_OLD_INFO = 6;
+    private static final int PARTITION_NEW_INFO = 7;
+    private static final int PARTITION_OPERATIONS = 8;
+
+    // Fields of PartitionInfo
+    private static final int PARTITION_INFO_SIZE = 1;
+
+    // Fields of InstallOperation
+    private static final int OPERATION_DATA_OFFSET = 2;
+    private static final int OPERATION_DATA_LENGTH = 3;
+    private static final int OPERATION_DST_EXTENTS = 6;
+
+    // Fields of Extent
+    private static final int EXTENT_START_BLOCK = 1;
+    private static final int EXTENT_NUM_BLOCKS = 2;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private long mVersion;
+    private long mManifestSize;
+    private long mMetadataSize;
+    private int mBlockSize = 4096;
+    private int mMinorVersion;
+    private long mMaxTimestamp;
+    private final List<Partition> mPartitions = new ArrayList<>();
+
+    public static class Partition {
+        private String mName;
+        private long mSize;
+        private int mOperationCount;
+        private long mWrittenBytes;
+        private boolean mIncremental;
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the size of the partition once updated
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getOperationCount() {
+            return mOperationCount;
+        }
+
+        /**
+         * @return how many bytes the operations write to the partition
+         */
+        public long getWrittenBytes() {
+            return mWrittenBytes;
+        }
+
+        /**
+         * @return true if the partition is updated from its current content
+         */
+        public boolean isIncremental() {
+            return mIncremental;
+        }
+    }
+
+    private PayloadManifest() {
+    }
+
+    /**
+     * Read the manifest of the payload stored in the given part of a file.
+     *
+     * @throws IOException if the payload is invalid
+     */
+    public static PayloadManifest read(File file, long offset, long size) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            if (offset < 0 || offset + size > channel.size()) {
+                throw new IOException("The payload is outside of " + file);
+            }
+            PayloadManifest manifest = new PayloadManifest();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(size, HEADER_SIZE_V2));
+            int headerSize = manifest.parseHeader(header, size);
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset + headerSize,
+                    manifest.mManifestSize);
+            manifest.parseManifest(data, size);
+            return manifest;
+        }
+    }
+
+    /**
+     * Read the manifest of the payload stored in the given part of a remote
+     * file, downloading only the header and the manifest.
+     *
+     * @throws IOException if the payload is invalid or can't be downloaded
+     */
+    public static PayloadManifest read(RemoteZipFile zipFile, long offset, long size)
+            throws IOException {
+        PayloadManifest manifest = new PayloadManifest();
+        ByteBuffer header = zipFile.read(offset, (int) Math.min(size, HEADER_SIZE_V2));
+        int headerSize = manifest.parseHeader(header, size);
+        ByteBuffer data = zipFile.read(offset + headerSize, (int) manifest.mManifestSize);
+        manifest.parseManifest(data, size);
+        return manifest;
+    }
+
+    /**
+     * @return the size of the header
+     */
+    private int parseHeader(ByteBuffer header, long payloadSize) throws IOException {
+        header.order(ByteOrder.BIG_ENDIAN);
+        if (header.limit() < HEADER_SIZE_V1) {
+            throw new IOException("The payload is too small");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                throw new IOException("Invalid payload magic");
+            }
+        }
+        mVersion = header.getLong(4);
+        long manifestSize = header.getLong(12);
+        int headerSize;
+        long signatureSize = 0;
+        if (mVersion == 1) {
+            headerSize = HEADER_SIZE_V1;
+        } else if (mVersion == 2 && header.limit() >= HEADER_SIZE_V2) {
+            headerSize = HEADER_SIZE_V2;
+            signatureSize = header.getInt(20) & 0xffffffffL;
+        } else {
+            throw new IOException("Unsupported payload version " + mVersion);
+        }
+        if (manifestSize <= 0 || manifestSize > MAX_MANIFEST_SIZE ||
+                headerSize + manifestSize + signatureSize > payloadSize) {
+            throw new IOException("Invalid manifest size " + manifestSize);
+        }
+        // The signature of the metadata follows the manifest, it's verified by
+        // update_engine
+        mManifestSize = manifestSize;
+        mMetadataSize = headerSize + manifestSize + signatureSize;
+        return headerSize;
+    }
+
+    private void parseManifest(ByteBuffer buffer, long payloadSize) throws IOException {
+        ProtoReader manifest = new ProtoReader(buffer);
+        List<ProtoReader> partitions = new ArrayList<>();
+        long signaturesOffset = 0;
+        long signaturesSize = 0;
+        while (manifest.next()) {
+            switch (manifest.getField()) {
+                case MANIFEST_BLOCK_SIZE:
+                    mBlockSize = (int) manifest.readVarint();
+                    break;
+                case MANIFEST_SIGNATURES_OFFSET:
+                    signaturesOffset = manifest.readVarint();
+                    break;
+                case MANIFEST_SIGNATURES_SIZE:
+                    signaturesSize = manifest.readVarint();
+                    break;
+                case MANIFEST_MINOR_VERSION:
+                    mMinorVersion = (int) manifest.readVarint();
+                    break;
+                case MANIFEST_PARTITIONS:
+                    // The block size can come after the partitions
+                    partitions.add(manifest.readMessage());
+                    break;
+                case MANIFEST_MAX_TIMESTAMP:
+                    mMaxTimestamp = manifest.readVarint();
+                    break;
+                default:
+                    manifest.skip();
+                    break;
+            }
+        }
+        if (mBlockSize <= 0) {
+            throw new IOException("Invalid block size " + mBlockSize);
+        }
+        if (partitions.isEmpty()) {
+            throw new IOException("The payload doesn't update any partition");
+        }
+
+        // The data of the operations follows the metadata
+        long dataSize = payloadSize - mMetadataSize;
+        if (signaturesOffset < 0 || signaturesSize < 0 ||
+                signaturesOffset + signaturesSize > dataSize) {
+            throw new IOException("The payload is truncated");
+        }
+        for (ProtoReader partition : partitions) {
+            mPartitions.add(parsePartition(partition, dataSize));
+        }
+    }
+
+    private Partition parsePartition(ProtoReader reader, long dataSize) throws IOException {
+        Partition partition = new Partition();
+        List<ProtoReader> operations = new ArrayList<>();
+        while (reader.next()) {
+            switch (reader.getField()) {
+                case PARTITION_NAME:
+                    partition.mName = reader.readString();
+                    break;
+                case PARTITION_OLD_INFO:
+                    partition.mIncremental = true;
+                    reader.skip();
+                    break;
+                case PARTITION_NEW_INFO:
+                    ProtoReader info = reader.readMessage();
+                    while (info.next()) {
+                        if (info.getField() == PARTITION_INFO_SIZE) {
+                            partition.mSize = info.readVarint();
+                        } else {
+                            info.skip();
+                        }
+                    }
+                    break;
+                case PARTITION_OPERATIONS:
+                    operations.add(reader.readMessage());
+                    break;
+                default:
+                    reader.skip();
+                    break;
+            }
+        }
+        if (partition.mName == null || partition.mName.isEmpty()) {
+            throw new IOException("Unnamed partition");
+        }
+        if (partition.mSize <= 0) {
+            throw new IOException("Invalid size for " + partition.mName);
+        }
+
+        long blockCount = (partition.mSize + mBlockSize - 1) / mBlockSize;
+        for (ProtoReader operation : operations) {
+            long dataOffset = 0;
+            long dataLength = 0;
+            while (operation.next()) {
+                switch (operation.getField()) {
+                    case OPERATION_DATA_OFFSET:
+                        dataOffset = operation.readVarint();
+                        break;
+                    case OPERATION_DATA_LENGTH:
+                        dataLength = operation.readVarint();
+                        break;
+                    case OPERATION_DST_EXTENTS:
+                        long blocks = checkExtent(operation.readMessage(), blockCount,
+                                partition.mName);
+                        partition.mWrittenBytes += blocks * mBlockSize;
+                        break;
+                    default:
+                        operation.skip();
+                        break;
+                }
+            }
+            if (dataOffset < 0 || dataLength < 0 || dataOffset + dataLength > dataSize) {
+                throw new IOException("An operation of " + partition.mName +
+                        " is outside of the payload");
+            }
+            partition.mOperationCount++;
+        }
+        return partition;
+    }
+
+    /**
+     * @return the number of blocks of the extent
+     */
+    private static long checkExtent(ProtoReader extent, long blockCount, String partition)
+            throws IOException {
+        long startBlock = 0;
+        long numBlocks = 0;
+        while (extent.next()) {
+            switch (extent.getField()) {
+                case EXTENT_START_BLOCK:
+                    startBlock = extent.readVarint();
+                    break;
+                case EXTENT_NUM_BLOCKS:
+                    numBlocks = extent.readVarint();
+                    break;
+                default:
+                    extent.skip();
+                    break;
+            }
+        }
+        if (startBlock == SPARSE_HOLE) {
+            return 0;
+        }
+        if (startBlock < 0 || numBlocks < 0 || startBlock + numBlocks > blockCount) {
+            throw new IOException("An operation writes outside of " + partition);
+        }
+        return numBlocks;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return the build date of the update, update_engine refuses to install
+     * payloads older than the current build
+     */
+    public long getMaxTimestamp() {
+        return mMaxTimestamp;
+    }
+
+    public List<Partition> getPartitions() {
+        return Collections.unmodifiableList(mPartitions);
+    }
+
+    /**
+     * @return true if the payload updates the current partitions rather than
+     * replacing them
+     */
+    public boolean isIncremental() {
+        for (Partition partition : mPartitions) {
+            if (partition.mIncremental) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getOperationCount() {
+        int count = 0;
+        for (Partition partition : mPartitions) {
+            count += partition.mOperationCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the space needed by the partitions in the inactive slot
+     */
+    public long getRequiredSpace() {
+        long size = 0;
+        for (Partition partition : mPartitions) {
+            size += partition.mSize;
+        }
+        return size;
+    }
+
+    /**
+     * @return a rough estimate of how long writing the partitions takes
+     */
+    public long getInstallTimeEstimateMillis() {
+        long bytes = 0;
+        for (Partition partition : mPartitions) {
+            bytes += partition.mWrittenBytes;
+        }
+        return bytes * 1000 / ESTIMATED_WRITE_BYTES_PER_SECOND;
+    }
+
+    @Override
+    public String toString() {
+        return "version " + mVersion + "." + mMinorVersion + ", " + mPartitions.size() +
+                " partitions, " + getOperationCount() + " operations, " +
+                getRequiredSpace() + " bytes";
+    }
+
+    /**
+     * Reads the fields of a protobuf message in place.
+     */
+    private static class ProtoReader {
+        private final ByteBuffer mBuffer;
+        private int mField;
+        private int mWireType;
+
+        ProtoReader(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Move to the next field.
+         *
+         * @return false if there are no more fields
+         */
+        boolean next() throws IOException {
+            if (!mBuffer.hasRemaining()) {
+                return false;
+            }
+            long key = readRawVarint();
+            mField = (int) (key >>> 3);
+            mWireType = (int) (key & 0x7);
+            if (mField <= 0) {
+                throw new IOException("Invalid manifest field " + mField);
+            }
+            return true;
+        }
+
+        int getField() {
+            return mField;
+        }
+
+        long readVarint() throws IOException {
+            if (mWireType != WIRE_VARINT) {
+                throw new IOException("Unexpected wire type for field " + mField);
+            }
+            return readRawVarint();
+        }
+
+        String readString() throws IOException {
+            ByteBuffer bytes = readLengthDelimited();
+            byte[] string = new byte[bytes.remaining()];
+            bytes.get(string);
+            return new String(string, StandardCharsets.UTF_8);
+        }
+
+        ProtoReader readMessage() throws IOException {
+            return new ProtoReader(readLengthDelimited());
+        }
+
+        void skip() throws IOException {
+            switch (mWireType) {
+                case WIRE_VARINT:
+                    readRawVarint();
+                    break;
+                case WIRE_FIXED64:
+                    advance(8);
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    readLengthDelimited();
+                    break;
+                case WIRE_FIXED32:
+                    advance(4);
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type " + mWireType);
+            }
+        }
+
+        private ByteBuffer readLengthDelimited() throws IOException {
+            if (mWireType != WIRE_LENGTH_DELIMITED) {
+                throw new IOException("Unexpected wire type for field " + mField);
+            }
+            long length = readRawVarint();
+            if (length < 0 || length > mBuffer.remaining()) {
+                throw new IOException("Truncated manifest");
+            }
+            ByteBuffer slice = mBuffer.slice();
+            slice.limit((int) length);
+            advance((int) length);
+            return slice;
+        }
+
+        private void advance(int count) throws IOException {
+            if (count > mBuffer.remaining()) {
+                throw new IOException("Truncated manifest");
+            }
+            mBuffer.position(mBuffer.position() + count);
+        }
+
+        private long readRawVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!mBuffer.hasRemaining()) {
+                    throw new IOException("Truncated manifest");
+                }
+                byte b = mBuffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint");
+        }
+    }
+}
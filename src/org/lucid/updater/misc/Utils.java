@@ -27,6 +27,8 @@ import android.os.Environment;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -36,6 +38,7 @@ import org.json.JSONObject;
 import org.lucid.updater.R;
 import org.lucid.updater.UpdatesDbHelper;
 import org.lucid.updater.controller.UpdaterService;
+import org.lucid.updater.download.RemoteZipFile;
 import org.lucid.updater.model.Update;
 import org.lucid.updater.model.UpdateBaseInfo;
 import org.lucid.updater.model.UpdateInfo;
@@ -45,14 +48,12 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.UUID;
 
 public class Utils {
     private static boolean isDebug = true;
@@ -81,6 +82,14 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    public static File getMirrorScoreboardFile(Context context) {
+        return new File(context.getCacheDir(), "mirrors.json");
+    }
+
+    public static File getDownloadJournalFile(File update) {
+        return new File(update.getAbsolutePath() + Constants.DOWNLOAD_JOURNAL_EXT);
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
     private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
@@ -92,6 +101,12 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version"));
+        if (!object.isNull("sha256")) {
+            update.setSha256(object.getString("sha256").toLowerCase(Locale.ROOT));
+        }
+        if (!object.isNull("chunk_manifest")) {
+            update.setChunkManifestUrl(object.getString("chunk_manifest"));
+        }
         return update;
     }
 
@@ -199,6 +214,16 @@ public class Utils {
         context.startService(intent);
     }
 
+    /**
+     * Install an A/B update directly from the server, without downloading it.
+     */
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_INSTALL_STREAMING);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -214,6 +239,39 @@ public class Utils {
                 || info.getType() == ConnectivityManager.TYPE_WIFI));
     }
 
+    /**
+     * @return the speed limit of the background downloads in bytes per second,
+     * 0 if there's none
+     */
+    public static long getBandwidthLimit(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        switch (preferences.getInt(Constants.PREF_BANDWIDTH_LIMIT,
+                Constants.BANDWIDTH_LIMIT_NONE)) {
+            case Constants.BANDWIDTH_LIMIT_HIGH:
+                return 2 * 1024 * 1024;
+            case Constants.BANDWIDTH_LIMIT_MEDIUM:
+                return 512 * 1024;
+            case Constants.BANDWIDTH_LIMIT_LOW:
+                return 128 * 1024;
+            case Constants.BANDWIDTH_LIMIT_NONE:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return when the speed limit applies, see BandwidthLimiter.setLimit()
+     */
+    public static String getBandwidthSchedule(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getString(Constants.PREF_BANDWIDTH_SCHEDULE, "");
+    }
+
+    public static int getDownloadSegments(Context context) {
+        return isOnWifiOrEthernet(context) ? Constants.DOWNLOAD_SEGMENTS_WIFI :
+                Constants.DOWNLOAD_SEGMENTS_MOBILE;
+    }
+
     /**
      * Compares two json formatted updates list files
      *
@@ -241,36 +299,6 @@ public class Utils {
         return false;
     }
 
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile   input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -330,6 +358,7 @@ public class Utils {
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
+            knownPaths.add(getDownloadJournalFile(update.getFile()).getAbsolutePath());
         }
         for (File file : files) {
             if (!knownPaths.contains(file.getAbsolutePath())) {
@@ -367,16 +396,18 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
+    public static boolean isABUpdate(ZipIndex zipIndex) {
+        return zipIndex.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                zipIndex.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
+    public static boolean isABUpdate(RemoteZipFile zipFile) {
         return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
                 zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
     }
 
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        return isABUpdate(ZipIndex.get(file));
     }
 
     public static void addToClipboard(Context context, String label, String text, String toastMessage) {
@@ -387,6 +418,73 @@ public class Utils {
         Toast.makeText(context, toastMessage, Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * @return the number of bytes of storage the given update still needs. Once the
+     * download reserved the space for the whole file, this is less than what's left
+     * to download.
+     */
+    public static long getRequiredSpace(UpdateInfo update) {
+        File file = update.getFile();
+        long allocated = 0;
+        if (file != null && file.exists()) {
+            try {
+                // st_blocks is always in 512 bytes units
+                allocated = Os.stat(file.getAbsolutePath()).st_blocks * 512;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Could not get the allocated size of " + file, e);
+                allocated = file.length();
+            }
+        }
+        return Math.max(getDownloadSize(update) - allocated, 0);
+    }
+
+    /**
+     * @return the number of bytes of the given update that are downloaded, less
+     * than the size of the package if only the payload is
+     */
+    public static long getDownloadSize(UpdateInfo update) {
+        return update.getRangeLength() >= 0 ? update.getRangeLength() : update.getFileSize();
+    }
+
+    /**
+     * @return how many bytes must be freed before the given number of bytes can
+     * be downloaded, 0 if there's enough space
+     */
+    public static long getMissingSpace(Context context, long bytes) {
+        StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+        try {
+            UUID uuid = Objects.requireNonNull(sm).getUuidForPath(getDownloadPath(context));
+            return Math.max(bytes - sm.getAllocatableBytes(uuid), 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not get the available space", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Make sure that the given number of bytes can be downloaded, deleting the
+     * cached files of the apps if needed.
+     *
+     * @return false if there isn't enough space
+     */
+    public static boolean allocateSpace(Context context, long bytes) {
+        StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+        UUID uuid;
+        try {
+            uuid = Objects.requireNonNull(sm).getUuidForPath(getDownloadPath(context));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not get the storage of the downloads", e);
+            return true;
+        }
+        try {
+            sm.allocateBytes(uuid, bytes);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not allocate " + bytes + " bytes", e);
+            return false;
+        }
+    }
+
     public static boolean isEncrypted(Context context, File file) {
         StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
         return Objects.requireNonNull(sm).isEncrypted(file);
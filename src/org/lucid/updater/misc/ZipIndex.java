@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lucid.updater.misc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * The entries of a local zip file and the exact offsets of their data. The
+ * central directory is memory-mapped and parsed once, then the local header of
+ * every entry is read, since its extra field can differ from the one in the
+ * central directory. The indexes of the last used files are cached until the
+ * files change.
+ */
+public class ZipIndex {
+
+    private static final String TAG = "ZipIndex";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_CACHED_INDEXES = 4;
+
+    private static final Map<String, ZipIndex> sCache =
+            new LinkedHashMap<String, ZipIndex>(MAX_CACHED_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            };
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final Map<String, Entry> mEntries;
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mDataOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long dataOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mDataOffset = dataOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return ZipEntry.STORED or ZipEntry.DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return the offset of the data from the beginning of the file
+         */
+        public long getDataOffset() {
+            return mDataOffset;
+        }
+    }
+
+    private ZipIndex(File file, long length, long lastModified, Map<String, Entry> entries) {
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mEntries = entries;
+    }
+
+    /**
+     * @return the index of the given file, parsing it only if it changed since
+     * the last call
+     * @throws ZipException if the file isn't a valid zip file
+     */
+    public static ZipIndex get(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (sCache) {
+            ZipIndex index = sCache.get(path);
+            if (index != null && index.isCurrent()) {
+                return index;
+            }
+        }
+        ZipIndex index = read(file);
+        synchronized (sCache) {
+            sCache.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * Forget the index of the given file.
+     */
+    public static void invalidate(File file) {
+        synchronized (sCache) {
+            sCache.remove(file.getAbsolutePath());
+        }
+    }
+
+    private boolean isCurrent() {
+        return mFile.length() == mLength && mFile.lastModified() == mLastModified;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return the offset of the data of the given entry
+     * @throws ZipException if there's no such entry
+     */
+    public long getDataOffset(String name) throws ZipException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new ZipException("Entry " + name + " not found");
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * @return a stream with the uncompressed content of the given entry
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        if (entry.mMethod != ZipEntry.STORED && entry.mMethod != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+        FileInputStream fis = new FileInputStream(mFile);
+        try {
+            fis.getChannel().position(entry.mDataOffset);
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+        InputStream is = new EntryInputStream(fis, entry.mCompressedSize);
+        return entry.mMethod == ZipEntry.STORED ? is :
+                new InflaterInputStream(is, new Inflater(true));
+    }
+
+    private static ZipIndex read(File file) throws IOException {
+        long lastModified = file.lastModified();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+
+            // The end of central directory record is followed by a comment of
+            // unknown length, map the longest possible tail of the file
+            int tailSize = (int) Math.min(length, ZIP64_LOCATOR_SIZE + EOCD_SIZE +
+                    MAX_COMMENT_SIZE);
+            MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY,
+                    length - tailSize, tailSize);
+            tail.order(ByteOrder.LITTLE_ENDIAN);
+            int eocd = findEndOfCentralDirectory(tail);
+            if (eocd < 0) {
+                throw new ZipException("Not a zip file");
+            }
+            long entryCount = tail.getShort(eocd + 10) & 0xffff;
+            long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if (entryCount == 0xffff || directorySize == 0xffffffffL ||
+                    directoryOffset == 0xffffffffL) {
+                int locator = eocd - ZIP64_LOCATOR_SIZE;
+                if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                    throw new ZipException("Missing zip64 end of central directory locator");
+                }
+                long zip64EocdOffset = tail.getLong(locator + 8);
+                if (zip64EocdOffset < 0 || zip64EocdOffset + ZIP64_EOCD_SIZE > length) {
+                    throw new ZipException("Invalid zip64 end of central directory");
+                }
+                ByteBuffer zip64Eocd = channel.map(FileChannel.MapMode.READ_ONLY,
+                        zip64EocdOffset, ZIP64_EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory");
+                }
+                entryCount = zip64Eocd.getLong(32);
+                directorySize = zip64Eocd.getLong(40);
+                directoryOffset = zip64Eocd.getLong(48);
+            }
+            if (directorySize > MAX_CENTRAL_DIRECTORY_SIZE || directoryOffset < 0 ||
+                    directoryOffset + directorySize > length) {
+                throw new ZipException("Invalid central directory");
+            }
+
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY,
+                    directoryOffset, directorySize).order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, Entry> entries = parseCentralDirectory(channel, directory, entryCount,
+                    directoryOffset);
+            Log.d(TAG, "Indexed " + entries.size() + " entries of " + file);
+            return new ZipIndex(file, length, lastModified, Collections.unmodifiableMap(entries));
+        }
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, Entry> parseCentralDirectory(FileChannel channel,
+            ByteBuffer directory, long entryCount, long directoryOffset) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.limit() ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long size = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+            int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > directory.limit()) {
+                throw new ZipException("Truncated central directory");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // The fields that don't fit in 32 bits are in the zip64 extra field,
+            // in this order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int length = directory.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    if (size == 0xffffffffL && field + 8 <= extraEnd) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && field + 8 <= extraEnd) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+
+            // The sizes in the local header can be zero when they're in a data
+            // descriptor, only the lengths of its variable fields are needed
+            if (localHeaderOffset < 0 ||
+                    localHeaderOffset + LOCAL_HEADER_SIZE > directoryOffset) {
+                throw new ZipException("Invalid local header offset for " + name);
+            }
+            localHeader.clear();
+            while (localHeader.hasRemaining()) {
+                if (channel.read(localHeader, localHeaderOffset + localHeader.position()) < 0) {
+                    throw new ZipException("Truncated local header for " + name);
+                }
+            }
+            if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + name);
+            }
+            long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE +
+                    (localHeader.getShort(26) & 0xffff) + (localHeader.getShort(28) & 0xffff);
+            if (dataOffset + compressedSize > directoryOffset) {
+                throw new ZipException("Invalid entry " + name);
+            }
+
+            entries.put(name, new Entry(name, method, compressedSize, size, dataOffset));
+            position = next;
+        }
+        return entries;
+    }
+
+    /**
+     * A stream that ends with the data of an entry.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        EntryInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int count = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (count > 0) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -28,6 +28,10 @@ public class Update extends UpdateBase implements UpdateInfo {
     private int installProgress;
     private boolean availableOnline;
     private boolean isFinalizing;
+    private long payloadSize = -1;
+    private boolean invalidPackage;
+    private long rangeOffset;
+    private long rangeLength = -1;
 
     public Update() {
     }
@@ -47,6 +51,10 @@ public class Update extends UpdateBase implements UpdateInfo {
         installProgress = update.getInstallProgress();
         availableOnline = update.getAvailableOnline();
         isFinalizing = update.getFinalizing();
+        payloadSize = update.getPayloadSize();
+        invalidPackage = update.getInvalidPackage();
+        rangeOffset = update.getRangeOffset();
+        rangeLength = update.getRangeLength();
     }
 
     @Override
@@ -129,4 +137,40 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setFinalizing(boolean finalizing) {
         isFinalizing = finalizing;
     }
+
+    @Override
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    public void setPayloadSize(long payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    @Override
+    public boolean getInvalidPackage() {
+        return invalidPackage;
+    }
+
+    public void setInvalidPackage(boolean invalidPackage) {
+        this.invalidPackage = invalidPackage;
+    }
+
+    @Override
+    public long getRangeOffset() {
+        return rangeOffset;
+    }
+
+    public void setRangeOffset(long rangeOffset) {
+        this.rangeOffset = rangeOffset;
+    }
+
+    @Override
+    public long getRangeLength() {
+        return rangeLength;
+    }
+
+    public void setRangeLength(long rangeLength) {
+        this.rangeLength = rangeLength;
+    }
 }
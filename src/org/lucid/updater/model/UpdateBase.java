@@ -24,6 +24,8 @@ public class UpdateBase implements UpdateBaseInfo {
     private String type;
     private String version;
     private long fileSize;
+    private String sha256;
+    private String chunkManifestUrl;
 
     public UpdateBase() {
     }
@@ -36,6 +38,8 @@ public class UpdateBase implements UpdateBaseInfo {
         type = update.getType();
         version = update.getVersion();
         fileSize = update.getFileSize();
+        sha256 = update.getSha256();
+        chunkManifestUrl = update.getChunkManifestUrl();
     }
 
     @Override
@@ -100,4 +104,22 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
+
+    @Override
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    @Override
+    public String getChunkManifestUrl() {
+        return chunkManifestUrl;
+    }
+
+    public void setChunkManifestUrl(String chunkManifestUrl) {
+        this.chunkManifestUrl = chunkManifestUrl;
+    }
 }
@@ -37,4 +37,26 @@ public interface UpdateInfo extends UpdateBaseInfo {
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    /**
+     * @return the size of the A/B payload according to the server, 0 if the
+     * package isn't A/B or -1 if it isn't known
+     */
+    long getPayloadSize();
+
+    /**
+     * @return true if the package on the server can't be installed
+     */
+    boolean getInvalidPackage();
+
+    /**
+     * @return the offset of the part of the package that is downloaded
+     */
+    long getRangeOffset();
+
+    /**
+     * @return the length of the part of the package that is downloaded, or -1
+     * if the whole package is
+     */
+    long getRangeLength();
 }